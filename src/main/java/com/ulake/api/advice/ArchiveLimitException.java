@@ -0,0 +1,14 @@
+package com.ulake.api.advice;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.PAYLOAD_TOO_LARGE)
+public class ArchiveLimitException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public ArchiveLimitException(String message) {
+		super(message);
+	}
+}
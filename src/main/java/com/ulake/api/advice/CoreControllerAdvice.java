@@ -0,0 +1,44 @@
+package com.ulake.api.advice;
+
+import java.util.Date;
+
+import org.apache.http.conn.ConnectionPoolTimeoutException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.context.request.WebRequest;
+
+@RestControllerAdvice
+public class CoreControllerAdvice {
+	@Value("${app.core.admission.retryAfterSeconds:5}")
+	private long retryAfterSeconds;
+
+	@ExceptionHandler(value = CoreOverloadedException.class)
+	public ResponseEntity<ErrorMessage> handleCoreOverloadedException(CoreOverloadedException ex,
+			WebRequest request) {
+		return serviceUnavailable(ex.getMessage(), ex.getRetryAfterSeconds(), request);
+	}
+
+	// No pooled connection to core became free in time; anything else from the
+	// client is left to the default handling
+	@ExceptionHandler(value = ResourceAccessException.class)
+	public ResponseEntity<ErrorMessage> handleResourceAccessException(ResourceAccessException ex,
+			WebRequest request) throws ResourceAccessException {
+		if (!(ex.getCause() instanceof ConnectionPoolTimeoutException)) {
+			throw ex;
+		}
+		return serviceUnavailable("No connection to core available, try again later", retryAfterSeconds, request);
+	}
+
+	private static ResponseEntity<ErrorMessage> serviceUnavailable(String message, long retryAfterSeconds,
+			WebRequest request) {
+		return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+				.header(HttpHeaders.RETRY_AFTER, String.valueOf(retryAfterSeconds))
+				.body(new ErrorMessage(HttpStatus.SERVICE_UNAVAILABLE.value(), new Date(), message,
+						request.getDescription(false)));
+	}
+}
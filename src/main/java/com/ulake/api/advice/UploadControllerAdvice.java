@@ -0,0 +1,31 @@
+package com.ulake.api.advice;
+
+import java.util.Date;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.RestControllerAdvice;
+import org.springframework.web.context.request.WebRequest;
+
+@RestControllerAdvice
+public class UploadControllerAdvice {
+	public static final String UPLOAD_OFFSET_HEADER = "Upload-Offset";
+
+	// Tell the client where to resume from
+	@ExceptionHandler(value = UploadOffsetException.class)
+	public ResponseEntity<ErrorMessage> handleUploadOffsetException(UploadOffsetException ex, WebRequest request) {
+		return ResponseEntity.status(HttpStatus.CONFLICT)
+				.header(UPLOAD_OFFSET_HEADER, String.valueOf(ex.getCurrentOffset()))
+				.body(new ErrorMessage(HttpStatus.CONFLICT.value(), new Date(), ex.getMessage(),
+						request.getDescription(false)));
+	}
+
+	// The session went away while the request waited for it
+	@ExceptionHandler(value = UploadNotFoundException.class)
+	public ResponseEntity<ErrorMessage> handleUploadNotFoundException(UploadNotFoundException ex,
+			WebRequest request) {
+		return ResponseEntity.status(HttpStatus.NOT_FOUND).body(new ErrorMessage(HttpStatus.NOT_FOUND.value(),
+				new Date(), ex.getMessage(), request.getDescription(false)));
+	}
+}
@@ -0,0 +1,14 @@
+package com.ulake.api.advice;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.NOT_FOUND)
+public class UploadNotFoundException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	public UploadNotFoundException(String uploadId) {
+		super(String.format("Upload [%s] not found", uploadId));
+	}
+}
@@ -0,0 +1,21 @@
+package com.ulake.api.advice;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ResponseStatus(HttpStatus.CONFLICT)
+public class UploadOffsetException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	private final long currentOffset;
+
+	public UploadOffsetException(String uploadId, long currentOffset, String message) {
+		super(String.format("Failed for upload [%s]: %s", uploadId, message));
+		this.currentOffset = currentOffset;
+	}
+
+	public long getCurrentOffset() {
+		return currentOffset;
+	}
+}
@@ -0,0 +1,126 @@
+package com.ulake.api.config;
+
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.client.RestTemplate;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+@Configuration
+public class CoreClientConfiguration {
+	@Value("${app.core.client.maxTotal:200}")
+	private int maxTotal;
+
+	@Value("${app.core.client.maxPerRoute:64}")
+	private int maxPerRoute;
+
+	@Value("${app.core.client.connectTimeoutMs:5000}")
+	private int connectTimeoutMs;
+
+	// Longest silence between two reads, not a cap on the whole transfer
+	@Value("${app.core.client.readTimeoutMs:60000}")
+	private int readTimeoutMs;
+
+	@Value("${app.core.client.poolAcquireTimeoutMs:2000}")
+	private int poolAcquireTimeoutMs;
+
+	@Value("${app.core.client.idleTimeoutSeconds:30}")
+	private long idleTimeoutSeconds;
+
+	@Value("${app.core.hedge.filePoolSize:32}")
+	private int hedgeFilePoolSize;
+
+	/**
+	 * Keep-alive connection pool to core, shared by every core call. Pool usage
+	 * is exposed as core.client.pool.* gauges.
+	 *
+	 * @return
+	 */
+	@Bean
+	public PoolingHttpClientConnectionManager coreConnectionManager(MeterRegistry registry) {
+		PoolingHttpClientConnectionManager manager = new PoolingHttpClientConnectionManager();
+		manager.setMaxTotal(maxTotal);
+		manager.setDefaultMaxPerRoute(maxPerRoute);
+		// Check connections that sat idle before reuse, core may have closed them
+		manager.setValidateAfterInactivity(2000);
+
+		Gauge.builder("core.client.pool.leased", manager, m -> m.getTotalStats().getLeased()).register(registry);
+		Gauge.builder("core.client.pool.available", manager, m -> m.getTotalStats().getAvailable())
+				.register(registry);
+		Gauge.builder("core.client.pool.pending", manager, m -> m.getTotalStats().getPending()).register(registry);
+		Gauge.builder("core.client.pool.max", manager, m -> m.getTotalStats().getMax()).register(registry);
+		return manager;
+	}
+
+	@Bean
+	public CloseableHttpClient coreHttpClient(PoolingHttpClientConnectionManager coreConnectionManager) {
+		RequestConfig requestConfig = RequestConfig.custom()
+				.setConnectTimeout(connectTimeoutMs)
+				.setSocketTimeout(readTimeoutMs)
+				.setConnectionRequestTimeout(poolAcquireTimeoutMs)
+				.build();
+		return HttpClients.custom()
+				.setConnectionManager(coreConnectionManager)
+				.setDefaultRequestConfig(requestConfig)
+				.evictExpiredConnections()
+				.evictIdleConnections(idleTimeoutSeconds, TimeUnit.SECONDS)
+				.build();
+	}
+
+	/**
+	 * RestTemplate for core. Request bodies are streamed rather than buffered, so
+	 * uploads of any size go out through a fixed buffer. The message converters
+	 * are the defaults, created once here.
+	 *
+	 * @return
+	 */
+	@Bean
+	public RestTemplate coreRestTemplate(CloseableHttpClient coreHttpClient) {
+		HttpComponentsClientHttpRequestFactory factory = new HttpComponentsClientHttpRequestFactory(coreHttpClient);
+		factory.setBufferRequestBody(false);
+		return new RestTemplate(factory);
+	}
+
+	/**
+	 * Non-blocking client behind the async core calls. It keeps its own
+	 * keep-alive connections, separate from the pool above.
+	 *
+	 * @return
+	 */
+	@Bean
+	public HttpClient coreAsyncHttpClient() {
+		return HttpClient.newBuilder()
+				.version(HttpClient.Version.HTTP_1_1)
+				.connectTimeout(Duration.ofMillis(connectTimeoutMs))
+				.build();
+	}
+
+	/**
+	 * Threads opening GET /file responses when hedged reads are on, so a second
+	 * attempt can start while the first is still waiting for core. There is no
+	 * queue: when all are busy the file is opened without hedging.
+	 *
+	 * @return
+	 */
+	@Bean
+	public ThreadPoolTaskExecutor coreHedgeExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(hedgeFilePoolSize);
+		executor.setMaxPoolSize(hedgeFilePoolSize);
+		executor.setQueueCapacity(0);
+		executor.setThreadNamePrefix("core-hedge-");
+		return executor;
+	}
+}
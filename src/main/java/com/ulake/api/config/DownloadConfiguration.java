@@ -0,0 +1,51 @@
+package com.ulake.api.config;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class DownloadConfiguration {
+	@Value("${app.cache.blob.fillPoolSize:8}")
+	private int fillPoolSize;
+
+	@Value("${app.download.archive.prefetchPoolSize:8}")
+	private int prefetchPoolSize;
+
+	/**
+	 * Threads copying content from core into the blob cache. There is no queue:
+	 * a reader waits on its fill, so when every thread is busy the download is
+	 * served straight from core instead.
+	 *
+	 * @return
+	 */
+	@Bean
+	public ThreadPoolTaskExecutor blobFillExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(fillPoolSize);
+		executor.setMaxPoolSize(fillPoolSize);
+		executor.setQueueCapacity(0);
+		executor.setThreadNamePrefix("blob-fill-");
+		return executor;
+	}
+
+	/**
+	 * Threads opening the next file of a folder archive while the current one is
+	 * written. When all are busy the archive opens the file itself.
+	 *
+	 * @return
+	 */
+	@Bean
+	public ThreadPoolTaskExecutor archivePrefetchExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(prefetchPoolSize);
+		executor.setMaxPoolSize(prefetchPoolSize);
+		executor.setQueueCapacity(0);
+		executor.setThreadNamePrefix("archive-prefetch-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		return executor;
+	}
+}
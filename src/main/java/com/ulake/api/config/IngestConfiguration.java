@@ -0,0 +1,91 @@
+package com.ulake.api.config;
+
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+
+@Configuration
+@EnableScheduling
+public class IngestConfiguration {
+	@Value("${app.ingest.poolSize:8}")
+	private int poolSize;
+
+	@Value("${app.ingest.queueCapacity:64}")
+	private int queueCapacity;
+
+	@Value("${app.ingest.jobPoolSize:4}")
+	private int jobPoolSize;
+
+	@Value("${app.ingest.jobQueueCapacity:1000}")
+	private int jobQueueCapacity;
+
+	@Value("${app.folder.mutation.poolSize:4}")
+	private int folderMutationPoolSize;
+
+	/**
+	 * Bounded worker pool running the bulk ingest pipeline. When the queue is
+	 * full the submitting thread runs the stage itself, which throttles the
+	 * producer instead of piling up work.
+	 *
+	 * @return
+	 */
+	@Bean
+	public ThreadPoolTaskExecutor ingestExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(poolSize);
+		executor.setMaxPoolSize(poolSize);
+		executor.setQueueCapacity(queueCapacity);
+		executor.setThreadNamePrefix("ingest-");
+		executor.setRejectedExecutionHandler(new ThreadPoolExecutor.CallerRunsPolicy());
+		return executor;
+	}
+
+	/**
+	 * Dedicated executor finishing asynchronous ingest jobs. Submissions beyond
+	 * the queue capacity are rejected rather than run on the request thread.
+	 *
+	 * @return
+	 */
+	@Bean
+	public ThreadPoolTaskExecutor ingestJobExecutor() {
+		ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+		executor.setCorePoolSize(jobPoolSize);
+		executor.setMaxPoolSize(jobPoolSize);
+		executor.setQueueCapacity(jobQueueCapacity);
+		executor.setThreadNamePrefix("ingest-job-");
+		return executor;
+	}
+
+	/**
+	 * Threads applying queued additions to folders. Each folder has at most one
+	 * batch in flight, so this bounds how many folders are rewritten at once.
+	 *
+	 * @return
+	 */
+	@Bean
+	public ThreadPoolTaskScheduler folderMutationScheduler() {
+		ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+		scheduler.setPoolSize(folderMutationPoolSize);
+		scheduler.setThreadNamePrefix("folder-mutation-");
+		return scheduler;
+	}
+
+	/**
+	 * Single thread for @Scheduled housekeeping such as expiring idle upload
+	 * sessions, kept apart from the folder mutation threads.
+	 *
+	 * @return
+	 */
+	@Bean
+	public ThreadPoolTaskScheduler taskScheduler() {
+		ThreadPoolTaskScheduler scheduler = new ThreadPoolTaskScheduler();
+		scheduler.setPoolSize(1);
+		scheduler.setThreadNamePrefix("housekeeping-");
+		return scheduler;
+	}
+}
@@ -20,6 +20,8 @@ import org.springframework.security.config.annotation.method.configuration.Enabl
 import org.springframework.security.config.annotation.method.configuration.GlobalMethodSecurityConfiguration;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
 
+import com.ulake.api.security.services.CachingJdbcMutableAclService;
+
 import javax.sql.DataSource;
 
 @Configuration
@@ -57,7 +59,9 @@ public class MethodSecurityConfiguration extends GlobalMethodSecurityConfigurati
 	 */
 	@Bean
 	public JdbcMutableAclService aclService() {
-		final JdbcMutableAclService service = new JdbcMutableAclService(dataSource, lookupStrategy(), aclCache());
+		// Sid and class keys are looked up once, not for every ACE written
+		final JdbcMutableAclService service = new CachingJdbcMutableAclService(dataSource, lookupStrategy(),
+				aclCache());
 		// Those two line for MySQL only
 		service.setClassIdentityQuery("SELECT @@IDENTITY");
 		service.setSidIdentityQuery("SELECT @@IDENTITY");
@@ -0,0 +1,5 @@
+package com.ulake.api.constant;
+
+public enum IngestJobState {
+	QUEUED, RUNNING, SUCCEEDED, FAILED
+}
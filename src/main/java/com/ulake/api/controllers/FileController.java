@@ -1,19 +1,27 @@
 package com.ulake.api.controllers;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
 import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PostAuthorize;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.acls.domain.BasePermission;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.util.StringUtils;
@@ -27,26 +35,33 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ulake.api.constant.AclSourceType;
-import com.ulake.api.constant.AclTargetType;
-import com.ulake.api.constant.PermType;
-import com.ulake.api.models.Acl;
 import com.ulake.api.models.File;
 import com.ulake.api.models.Folder;
 import com.ulake.api.models.User;
 import com.ulake.api.payload.request.UpdateFolderRequest;
+import com.ulake.api.payload.response.FileUploadResult;
+import com.ulake.api.payload.response.IngestJobResponse;
+import com.ulake.api.repository.AclQueries;
 import com.ulake.api.repository.AclRepository;
 import com.ulake.api.repository.FileRepository;
 import com.ulake.api.repository.FolderRepository;
 import com.ulake.api.repository.UserRepository;
 import com.ulake.api.security.services.ComlakeCoreService;
+import com.ulake.api.security.services.DatasetMetadataService;
+import com.ulake.api.security.services.FileDownloadService;
+import com.ulake.api.security.services.FileIngestService;
+import com.ulake.api.security.services.FolderMutationService;
+import com.ulake.api.security.services.IngestJobService;
 import com.ulake.api.security.services.LocalPermissionService;
 import com.ulake.api.security.services.impl.UserDetailsImpl;
+import com.ulake.api.ulti.HttpValidators;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -77,7 +92,21 @@ public class FileController {
 	@Autowired
 	ComlakeCoreService coreService;
 
-	// TODO: Bulk upload files
+	@Autowired
+	private FileIngestService ingestService;
+
+	@Autowired
+	private IngestJobService ingestJobService;
+
+	@Autowired
+	private FileDownloadService downloadService;
+
+	@Autowired
+	private DatasetMetadataService metadataService;
+
+	@Autowired
+	private FolderMutationService folderMutations;
+
 	@Operation(summary = "Upload a file", description = "This can only be done by logged in user having the file permissions.", security = {
 			@SecurityRequirement(name = "bearer-key") }, tags = { "File" })
 	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Status OK") })
@@ -95,34 +124,71 @@ public class FileController {
 		User fileOwner = userRepository.findByEmail(userDetails.getEmail());
 
 		String fileName = StringUtils.getFilename(file.getOriginalFilename());
-		String fileMimeType = file.getContentType();
-		Long fileSize = file.getSize();
-		byte[] fileData = file.getBytes();
-
-		File fileInfo = new File(fileOwner, fileName);
-
-		String cid = coreService.postFile(fileData, fileSize, fileMimeType);
-		fileInfo.setCid(cid);
+		return ingestService.ingest(fileOwner, fileName, file, file.getSize(), file.getContentType(), source, topics,
+				language);
+	}
 
-		String datasetId = coreService.addDataset(cid, fileName, source, topics, fileSize, fileMimeType, language);
-		fileInfo.setDatasetId(datasetId);
+	@Operation(summary = "Upload a file as a raw stream", description = "The request body is streamed to core as it arrives, without being buffered. This can only be done by logged in user having the file permissions.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "File" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Status OK") })
+	@PostMapping(value = "/files/stream", consumes = { MediaType.APPLICATION_OCTET_STREAM_VALUE })
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	@PostAuthorize("hasPermission(returnObject, 'READ')")
+	public File uploadFileStream(HttpServletRequest request, @RequestParam(required = true, value = "name") String name,
+			@RequestParam(required = false, value = "mimeType") String mimeType,
+			@RequestParam(required = true, value = "topics", defaultValue = "unlisted") List<String> topics,
+			@RequestParam(required = false, value = "language", defaultValue = "English") String language,
+			@RequestParam(required = true, value = "source", defaultValue = "unspecified") String source)
+			throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
+		User fileOwner = userRepository.findByEmail(userDetails.getEmail());
 
-		// Save File Metadata in our db;
-		fileRepository.save(fileInfo);
+		String fileName = StringUtils.getFilename(name);
+		String fileMimeType = mimeType != null ? mimeType : MediaType.APPLICATION_OCTET_STREAM_VALUE;
+		// -1 when the client sends the body chunked
+		long fileSize = request.getContentLengthLong();
+		try (InputStream fileData = request.getInputStream()) {
+			return ingestService.ingest(fileOwner, fileName, fileData, fileSize, fileMimeType, source, topics,
+					language);
+		}
+	}
 
-		// Add ACL WRITE and READ Permission For Admin and File Owner
-		permissionService.addPermissionForAuthority(fileInfo, BasePermission.READ, "ROLE_ADMIN");
-		permissionService.addPermissionForAuthority(fileInfo, BasePermission.WRITE, "ROLE_ADMIN");
+	@Operation(summary = "Upload a file in the background", description = "The file is staged locally and ingested by a background job. Poll the returned job for the result. This can only be done by logged in user having the file permissions.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "File" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "202", description = "Ingest job accepted"),
+			@ApiResponse(responseCode = "503", description = "Too many pending jobs", content = @Content) })
+	@PostMapping(value = "/files/async", consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	public ResponseEntity<IngestJobResponse> uploadFileAsync(
+			@RequestParam(required = true, value = "file") MultipartFile file,
+			@RequestParam(required = true, value = "topics", defaultValue = "unlisted") List<String> topics,
+			@RequestParam(required = false, value = "language", defaultValue = "English") String language,
+			@RequestParam(required = true, value = "source", defaultValue = "unspecified") String source)
+			throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
+		User fileOwner = userRepository.findByEmail(userDetails.getEmail());
 
-		permissionService.addPermissionForUser(fileInfo, BasePermission.READ, authentication.getName());
-		permissionService.addPermissionForUser(fileInfo, BasePermission.WRITE, authentication.getName());
+		// A full job queue is answered with 503 and Retry-After
+		IngestJobResponse job = ingestJobService.submit(fileOwner, file, source, topics, language);
+		return ResponseEntity.accepted().location(URI.create("/api/jobs/" + job.getId())).body(job);
+	}
 
-		aclRepository.save(
-				new Acl(fileInfo.getId(), fileOwner.getUsername(), AclSourceType.FILE, AclTargetType.USER, PermType.READ));
-		aclRepository.save(
-				new Acl(fileInfo.getId(), fileOwner.getUsername(), AclSourceType.FILE, AclTargetType.USER, PermType.WRITE));
+	@Operation(summary = "Upload many files at once", description = "Files are ingested in parallel and a result is returned for each of them. This can only be done by logged in user having the file permissions.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "File" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Status OK") })
+	@PostMapping(value = "/files/bulk", consumes = { MediaType.MULTIPART_FORM_DATA_VALUE })
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	public List<FileUploadResult> uploadFiles(@RequestParam(required = true, value = "files") List<MultipartFile> files,
+			@RequestParam(required = true, value = "topics", defaultValue = "unlisted") List<String> topics,
+			@RequestParam(required = false, value = "language", defaultValue = "English") String language,
+			@RequestParam(required = true, value = "source", defaultValue = "unspecified") String source) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
+		User fileOwner = userRepository.findByEmail(userDetails.getEmail());
 
-		return fileInfo;
+		return ingestService.ingestAll(fileOwner, files, source, topics, language);
 	}
 
 	@Operation(summary = "Update a file by ID", description = "This can only be done by user who has write permission to file.", security = {
@@ -152,18 +218,18 @@ public class FileController {
 	@PutMapping("/folders/{folderId}/files/{fileId}")
 	@PreAuthorize("hasRole('ADMIN') or hasRole('USER') or hasPermission(#file, 'WRITE')")
 	public ResponseEntity<Folder> addFileToFolder(@PathVariable("folderId") Long folderId,
-			@PathVariable("fileId") Long fileId) throws JsonMappingException, JsonProcessingException {
+			@PathVariable("fileId") Long fileId) throws IOException {
 		Optional<Folder> folderData = folderRepository.findById(folderId);
 		Optional<File> fileData = fileRepository.findById(fileId);
 		if (folderData.isPresent() && fileData.isPresent()) {
 			Folder _folder = folderData.get();
 			File _file = fileData.get();
 			_file.setFolder(_folder);
-			String cid = coreService.cpToDir(_file.getCid(), _folder.getCid(), _file.getName());
-			_folder.setCid(cid);
 			_file.setIsFirstNode(false);
 			fileRepository.save(_file);
-			return new ResponseEntity<>(folderRepository.save(_folder), HttpStatus.OK);
+			// Batched with other additions to the folder, which stores the new cid
+			_folder.setCid(folderMutations.add(_folder.getId(), _file.getCid(), _file.getName()));
+			return new ResponseEntity<>(_folder, HttpStatus.OK);
 		} else {
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
@@ -177,20 +243,27 @@ public class FileController {
 			@ApiResponse(responseCode = "404", description = "File not found", content = @Content) })
 	@GetMapping("/files/{id}")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#id, 'com.ulake.api.models.File', 'READ'))")
-	public ResponseEntity<?> getFileById(@PathVariable("id") Long id) throws JsonProcessingException {
+	public ResponseEntity<?> getFileById(@PathVariable("id") Long id, WebRequest request)
+			throws IOException {
 		Optional<File> fileData = fileRepository.findById(id);
 		if (fileData.isPresent()) {
 			File _file = fileData.get();
-			Object[] dataset = coreService.findByDatasetId(_file.getDatasetId());
+			String etag = HttpValidators.metadataEtag(_file.getDatasetId(), _file);
+			if (request.checkNotModified(etag, HttpValidators.lastModified(_file))) {
+				return null;
+			}
+			// Core looks the dataset up while the entity is serialized
+			CompletableFuture<Object[]> dataset = coreService.findByDatasetIdAsync(_file.getDatasetId());
 			ObjectMapper mapper = new ObjectMapper();
 			String jsonString = mapper.writeValueAsString(_file);
 			JSONObject jo = new JSONObject(jsonString);; 
-			String datasetJsonString = mapper.writeValueAsString(dataset[0]);
+			String datasetJsonString = mapper.writeValueAsString(ComlakeCoreService.join(dataset)[0]);
 			JSONObject datasetJson = new JSONObject(datasetJsonString);; 
 			jo.put("language", datasetJson.getString("language"));
 			jo.put("source", datasetJson.getString("source"));
 			jo.put("topics", datasetJson.getJSONArray("topics"));			
-			return ResponseEntity.status(HttpStatus.OK).body(jo.toString());
+			return ResponseEntity.status(HttpStatus.OK).cacheControl(HttpValidators.METADATA_CACHE_CONTROL)
+					.body(jo.toString());
 		} else {
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
@@ -204,7 +277,7 @@ public class FileController {
 			@ApiResponse(responseCode = "404", description = "File not found", content = @Content) })
 	@GetMapping("/find/topics")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#id, 'com.ulake.api.models.File', 'READ')) or (hasPermission(#id, 'com.ulake.api.models.Folder', 'READ'))")
-	public ResponseEntity<?> getContentByTopic(@RequestParam("topics") List<String> topics) {
+	public ResponseEntity<?> getContentByTopic(@RequestParam("topics") List<String> topics) throws IOException {
 		return new ResponseEntity<>(coreService.findByTopics(topics), HttpStatus.OK);
 	}
 
@@ -233,13 +306,19 @@ public class FileController {
 	@ApiResponses(value = @ApiResponse(description = "successful operation"))
 	@GetMapping("/files")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#file, 'READ'))")
-	public List<File> getAllFiles(@RequestParam(required = false) String name) {
-		List<File> files = new ArrayList<File>();
+	public ResponseEntity<List<?>> getAllFiles(@RequestParam(required = false) String name,
+			@RequestParam(required = false) String include, @RequestParam(required = false) Integer page,
+			@RequestParam(defaultValue = "10") int perPage) throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		List<String> authorities = AclQueries.authorities(authentication);
+		// Without a page every readable file is returned, as before paging
+		Pageable pageable = page == null ? Pageable.unpaged() : PageRequest.of(page, perPage);
+		Page<File> files;
 		if (name == null)
-			fileRepository.findAll().forEach(files::add);
+			files = fileRepository.findReadable(authentication.getName(), authorities, pageable);
 		else
-			fileRepository.findByNameContaining(name).forEach(files::add);
-		return files;
+			files = fileRepository.findReadableByNameContaining(name, authentication.getName(), authorities, pageable);
+		return withTotalCount(files, include);
 	}
 
 	@Operation(summary = "Get all first node content", description = "This can only be done by logged in user with file permissions.", security = {
@@ -247,11 +326,13 @@ public class FileController {
 	@ApiResponses(value = @ApiResponse(description = "successful operation"))
 	@GetMapping("/content")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#file, 'READ')) or (hasPermission(#folder, 'READ'))")
-	public List<Object> getFirstNodeContent() {
+	public List<?> getFirstNodeContent(@RequestParam(required = false) String include) throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		List<String> authorities = AclQueries.authorities(authentication);
 		List<Object> content = new ArrayList<>();
-		folderRepository.findByIsFirstNodeTrue().forEach(content::add);
-		fileRepository.findByIsFirstNodeTrue().forEach(content::add);
-		return content;
+		content.addAll(folderRepository.findReadableByIsFirstNodeTrue(authentication.getName(), authorities));
+		content.addAll(fileRepository.findReadableByIsFirstNodeTrue(authentication.getName(), authorities));
+		return DatasetMetadataService.wantsMetadata(include) ? metadataService.withMetadata(content) : content;
 	}
 
 	@Operation(summary = "List directory by ID", description = "This can only be done by logged in user with file permissions.", security = {
@@ -259,12 +340,13 @@ public class FileController {
 	@ApiResponses(value = @ApiResponse(description = "successful operation"))
 	@GetMapping("/folders/ls/{folderId}")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#folder, 'READ'))")
-	public List<Object> getContentById(@PathVariable Long folderId) {
+	public List<?> getContentById(@PathVariable Long folderId, @RequestParam(required = false) String include)
+			throws IOException {
 		List<Object> content = new ArrayList<>();
 		Folder _folder = folderRepository.findById(folderId).get();
 		_folder.getSubfolders().forEach(content::add);
 		_folder.getFiles().forEach(content::add);
-		return content;
+		return DatasetMetadataService.wantsMetadata(include) ? metadataService.withMetadata(content) : content;
 	}
 
 	@Operation(summary = "Find all contents by name containing", description = "This can only be done by logged in user with file permissions.", security = {
@@ -273,9 +355,15 @@ public class FileController {
 	@GetMapping("/find/name/{name}")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#file, 'READ')) or (hasPermission(#folder, 'READ'))")
 	public List<Object> findByName(@PathVariable String name) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		List<String> authorities = AclQueries.authorities(authentication);
 		List<Object> content = new ArrayList<>();
-		fileRepository.findByNameContaining(name).forEach(content::add);
-		folderRepository.findByNameContaining(name).forEach(content::add);
+		content.addAll(fileRepository
+				.findReadableByNameContaining(name, authentication.getName(), authorities, Pageable.unpaged())
+				.getContent());
+		content.addAll(folderRepository
+				.findReadableByNameContaining(name, authentication.getName(), authorities, Pageable.unpaged())
+				.getContent());
 		return content;
 	}
 
@@ -283,19 +371,31 @@ public class FileController {
 			@SecurityRequirement(name = "bearer-key") }, tags = { "File" })
 	@PreAuthorize("hasRole('ADMIN') or hasRole('USER') or hasPermission(#file, 'READ')")
 	@GetMapping("/files/data/{id}")
-	public ResponseEntity<?> getFileData(@PathVariable Long id) {
+	public void getFileData(@PathVariable Long id, HttpServletRequest request, HttpServletResponse response)
+			throws IOException {
 		File fileInfo = fileRepository.findById(id).get();
-		String cid = fileInfo.getCid();
-		return ResponseEntity.ok()
-				.header(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + fileInfo.getName() + "\"")
-				.body(coreService.getFileData(cid));
+		downloadService.serve(fileInfo, request, response);
 	}
 
 	@Operation(summary = "Get All Files by Folder Id", description = "This can only be done by logged in user and those who have read permssions of file.", security = {
 			@SecurityRequirement(name = "bearer-key") }, tags = { "File" })
 	@PreAuthorize("hasRole('ADMIN') or hasRole('USER') or hasPermission(#file, 'READ')")
 	@GetMapping("/folder/{folderId}/files")
-	public List<File> getAllFilesByFolderId(@PathVariable(value = "folderId") Long folderId) {
-		return fileRepository.findByFolderId(folderId);
+	public ResponseEntity<List<?>> getAllFilesByFolderId(@PathVariable(value = "folderId") Long folderId,
+			@RequestParam(required = false) Integer page, @RequestParam(defaultValue = "10") int perPage)
+			throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		Pageable pageable = page == null ? Pageable.unpaged() : PageRequest.of(page, perPage);
+		return withTotalCount(fileRepository.findReadableByFolderId(folderId, authentication.getName(),
+				AclQueries.authorities(authentication), pageable), null);
+	}
+
+	// The page as the body and the number of readable files in x-total-count
+	private ResponseEntity<List<?>> withTotalCount(Page<File> files, String include) throws IOException {
+		HttpHeaders responseHeaders = new HttpHeaders();
+		responseHeaders.set("x-total-count", String.valueOf(files.getTotalElements()));
+		List<?> body = DatasetMetadataService.wantsMetadata(include) ? metadataService.withMetadata(files.getContent())
+				: files.getContent();
+		return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
 	}
 }
@@ -1,17 +1,28 @@
 package com.ulake.api.controllers;
 
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 
 import org.json.JSONObject;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.domain.Pageable;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.security.access.prepost.PostAuthorize;
 import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.security.acls.domain.BasePermission;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.context.SecurityContextHolder;
 import org.springframework.web.bind.annotation.CrossOrigin;
@@ -24,14 +35,21 @@ import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RequestMapping;
 import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
+import com.ulake.api.repository.AclQueries;
 import com.ulake.api.repository.AclRepository;
 import com.ulake.api.repository.FileRepository;
 import com.ulake.api.repository.FolderRepository;
 import com.ulake.api.repository.UserRepository;
+import com.ulake.api.security.services.ArchiveExpansionService;
 import com.ulake.api.security.services.ComlakeCoreService;
+import com.ulake.api.security.services.DatasetMetadataService;
+import com.ulake.api.security.services.FolderArchiveService;
+import com.ulake.api.security.services.FolderMutationService;
 import com.ulake.api.security.services.LocalPermissionService;
 import com.ulake.api.security.services.impl.UserDetailsImpl;
+import com.ulake.api.ulti.HttpValidators;
 
 import io.swagger.v3.oas.annotations.Operation;
 import io.swagger.v3.oas.annotations.media.Content;
@@ -45,9 +63,6 @@ import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.ulake.api.constant.AclSourceType;
-import com.ulake.api.constant.AclTargetType;
-import com.ulake.api.constant.PermType;
-import com.ulake.api.models.Acl;
 import com.ulake.api.models.Folder;
 import com.ulake.api.models.User;
 import com.ulake.api.payload.request.CreateFolderRequest;
@@ -75,6 +90,18 @@ public class FolderController {
 	@Autowired
 	ComlakeCoreService coreService;
 
+	@Autowired
+	private ArchiveExpansionService archiveService;
+
+	@Autowired
+	private FolderArchiveService folderArchiveService;
+
+	@Autowired
+	private DatasetMetadataService metadataService;
+
+	@Autowired
+	private FolderMutationService folderMutations;
+
 	@Operation(summary = "Add a folder", description = "This can only be done by logged in user.", security = {
 			@SecurityRequirement(name = "bearer-key") }, tags = { "Folder" })
 	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Status OK") })
@@ -82,6 +109,13 @@ public class FolderController {
 	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
 	@PostAuthorize("hasPermission(returnObject, 'READ')")
 	public Folder createFolder(@RequestBody CreateFolderRequest createFolderRequest) throws IOException {
+		// Request to core POST /dir, then POST /add - Add Metadata for the
+		// directory. Both run while the folder row and its ACLs are written.
+		CompletableFuture<String> cid = coreService.postFolderAsync();
+		CompletableFuture<String> datasetId = cid.thenCompose(folderCid -> coreService.addDatasetAsync(folderCid,
+				createFolderRequest.getName(), createFolderRequest.getSource(), createFolderRequest.getTopics(), null,
+				null, createFolderRequest.getLanguage()));
+
 		// Get current principal
 		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
 		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
@@ -90,30 +124,45 @@ public class FolderController {
 		// Create Folder
 		Folder _folder = new Folder(folderCreator, createFolderRequest.getName());
 
-		String cid = coreService.postFolder();
-		_folder.setCid(cid);
-
-		// Request to core POST /add - Add Metadata for the directory
-		String datasetId = coreService.addDataset(cid, createFolderRequest.getName(), createFolderRequest.getSource(),
-				createFolderRequest.getTopics(), null, null, createFolderRequest.getLanguage());
-		_folder.setDatasetId(datasetId);
-
 		// Save to Repository
 		folderRepository.save(_folder);
 
-		// Add ACL permissions
-		permissionService.addPermissionForAuthority(_folder, BasePermission.READ, "ROLE_ADMIN");
-		permissionService.addPermissionForAuthority(_folder, BasePermission.WRITE, "ROLE_ADMIN");
-		permissionService.addPermissionForUser(_folder, BasePermission.READ, authentication.getName());
-		permissionService.addPermissionForUser(_folder, BasePermission.WRITE, authentication.getName());
+		// Add ACL permissions and create Acl
+		permissionService.grantOwner(_folder, AclSourceType.FOLDER, authentication.getName());
 
-		// Create Acl
-		aclRepository.save(new Acl(_folder.getId(), folderCreator.getUsername(), AclSourceType.FOLDER, AclTargetType.USER,
-				PermType.READ));
-		aclRepository.save(new Acl(_folder.getId(), folderCreator.getUsername(), AclSourceType.FOLDER, AclTargetType.USER,
-				PermType.WRITE));
+		try {
+			_folder.setCid(ComlakeCoreService.join(cid));
+			_folder.setDatasetId(ComlakeCoreService.join(datasetId));
+		} catch (IOException | RuntimeException e) {
+			// Core failed, take back the folder written in the meantime
+			folderRepository.deleteById(_folder.getId());
+			permissionService.removeAcl(_folder);
+			aclRepository.removeBySourceIdAndSourceType(_folder.getId(), AclSourceType.FOLDER);
+			throw e;
+		}
+		return folderRepository.save(_folder);
+	}
 
-		return _folder;
+	@Operation(summary = "Create a folder tree from an archive", description = "The request body is a zip or tar archive (optionally gzip compressed). It is expanded on the fly into a folder with the given name. This can only be done by logged in user.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Folder" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Status OK") })
+	@PostMapping(value = "/folders/archive", consumes = { MediaType.APPLICATION_OCTET_STREAM_VALUE, "application/zip",
+			"application/x-tar", "application/gzip", "application/x-gzip" })
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	@PostAuthorize("hasPermission(returnObject, 'READ')")
+	public Folder createFolderFromArchive(HttpServletRequest request,
+			@RequestParam(required = true, value = "name") String name,
+			@RequestParam(required = true, value = "topics", defaultValue = "unlisted") List<String> topics,
+			@RequestParam(required = false, value = "language", defaultValue = "English") String language,
+			@RequestParam(required = true, value = "source", defaultValue = "unspecified") String source)
+			throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
+		User folderCreator = userRepository.findByEmail(userDetails.getEmail());
+
+		try (InputStream archive = request.getInputStream()) {
+			return archiveService.expand(folderCreator, name, archive, source, topics, language);
+		}
 	}
 
 	@Operation(summary = "Update a folder by ID", description = "Only name and parentId could be updated .This can only be done by users who has write permission for folders.", security = {
@@ -133,10 +182,12 @@ public class FolderController {
 			String language = updateFolderRequest.getLanguage();
 
 			String newDatasetId = coreService.updateDataset(currDatasetId, name, source, topics, language);
+			// Saving the whole entity would put back a cid read before the
+			// mutation queue stored a newer one
+			folderRepository.updateNameAndDatasetId(id, name, newDatasetId, new Date());
 			_folder.setDatasetId(newDatasetId);
-			_folder.setName(updateFolderRequest.getName());
-			
-			return new ResponseEntity<>(folderRepository.save(_folder), HttpStatus.OK);
+			_folder.setName(name);
+			return new ResponseEntity<>(_folder, HttpStatus.OK);
 		} else {
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
@@ -148,18 +199,22 @@ public class FolderController {
 	@PutMapping("/folders/{folderId}/subfolders/{subfolderId}")
 	@PreAuthorize("hasRole('ADMIN') or hasRole('USER') or hasPermission(#folder, 'WRITE')")
 	public ResponseEntity<Folder> addSubfolder(@PathVariable("folderId") Long folderId,
-			@PathVariable("subfolderId") Long subfolderId) throws JsonMappingException, JsonProcessingException {
+			@PathVariable("subfolderId") Long subfolderId) throws IOException {
 		Optional<Folder> subfolderData = folderRepository.findById(subfolderId);
 		Optional<Folder> folderData = folderRepository.findById(folderId);
 		if (subfolderData.isPresent() && folderData.isPresent()) {
 			Folder _folder = folderData.get();
 			Folder _subfolder = subfolderData.get();
+			// Column updates only, so neither folder's cid is overwritten with the
+			// one read above while the mutation queue stores a newer one
+			folderRepository.updateParent(subfolderId, _folder, new Date());
+			String subfolderCid = folderRepository.findCidById(subfolderId).orElse(_subfolder.getCid());
+			// Batched with other additions to the folder, which stores the new cid
+			_folder.setCid(folderMutations.add(_folder.getId(), subfolderCid, _subfolder.getName()));
 			_folder.addSubfolder(_subfolder);
 			_subfolder.setParent(_folder);
-			String cid = coreService.cpToDir(_subfolder.getCid(), _folder.getCid(), _subfolder.getName());
-			_folder.setCid(cid);
 			_subfolder.setIsFirstNode(false);
-			return new ResponseEntity<>(folderRepository.save(_folder), HttpStatus.OK);
+			return new ResponseEntity<>(_folder, HttpStatus.OK);
 		} else {
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
@@ -173,20 +228,27 @@ public class FolderController {
 			@ApiResponse(responseCode = "404", description = "Folder not found", content = @Content) })
 	@GetMapping("/folders/{id}")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#id, 'com.ulake.api.models.Folder', 'READ'))")
-	public ResponseEntity<?> getFolderById(@PathVariable("id") long id) throws JsonProcessingException {
+	public ResponseEntity<?> getFolderById(@PathVariable("id") long id, WebRequest request)
+			throws IOException {
 		Optional<Folder> folderData = folderRepository.findById(id);
 		if (folderData.isPresent()) {
 			Folder _folder = folderData.get();	
-			Object[] dataset = coreService.findByDatasetId(_folder.getDatasetId());
+			String etag = HttpValidators.metadataEtag(_folder.getDatasetId(), _folder);
+			if (request.checkNotModified(etag, HttpValidators.lastModified(_folder))) {
+				return null;
+			}
+			// Core looks the dataset up while the entity is serialized
+			CompletableFuture<Object[]> dataset = coreService.findByDatasetIdAsync(_folder.getDatasetId());
 			ObjectMapper mapper = new ObjectMapper();
 			String jsonString = mapper.writeValueAsString(_folder);
 			JSONObject jo = new JSONObject(jsonString);; 
-			String datasetJsonString = mapper.writeValueAsString(dataset[0]);
+			String datasetJsonString = mapper.writeValueAsString(ComlakeCoreService.join(dataset)[0]);
 			JSONObject datasetJson = new JSONObject(datasetJsonString);; 
 			jo.put("language", datasetJson.getString("language"));
 			jo.put("source", datasetJson.getString("source"));
 			jo.put("topics", datasetJson.getJSONArray("topics"));			
-			return ResponseEntity.status(HttpStatus.OK).body(jo.toString());
+			return ResponseEntity.status(HttpStatus.OK).cacheControl(HttpValidators.METADATA_CACHE_CONTROL)
+					.body(jo.toString());
 		} else {
 			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
 		}
@@ -200,8 +262,7 @@ public class FolderController {
 			@ApiResponse(responseCode = "404", description = "Folder not found", content = @Content) })
 	@GetMapping("/folders/content/{id}")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#id, 'com.ulake.api.models.Folder', 'READ'))")
-	public ResponseEntity<?> getContentFolderById(@PathVariable("id") long id)
-			throws JsonMappingException, JsonProcessingException {
+	public ResponseEntity<?> getContentFolderById(@PathVariable("id") long id) throws IOException {
 		Optional<Folder> folderData = folderRepository.findById(id);
 		if (folderData.isPresent()) {
 			Folder _folder = folderData.get();
@@ -212,18 +273,50 @@ public class FolderController {
 		}
 	}
 
+	@Operation(summary = "Download a folder as a zip archive", description = "This can only be done by users who has read permission for folders. Files and subfolders the user cannot read are left out.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Folder" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "successful operation"),
+			@ApiResponse(responseCode = "404", description = "Folder not found", content = @Content) })
+	@GetMapping(value = "/folders/{id}/archive", produces = "application/zip")
+	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#id, 'com.ulake.api.models.Folder', 'READ'))")
+	public void getFolderArchive(@PathVariable("id") long id, HttpServletResponse response) throws IOException {
+		Optional<Folder> folderData = folderRepository.findById(id);
+		if (!folderData.isPresent()) {
+			response.setStatus(HttpStatus.NOT_FOUND.value());
+			return;
+		}
+		Folder _folder = folderData.get();
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		response.setContentType("application/zip");
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION, ContentDisposition.attachment()
+				.filename(_folder.getName() + ".zip", StandardCharsets.UTF_8).build().toString());
+		folderArchiveService.write(_folder, authentication, response.getOutputStream());
+	}
+
 	@Operation(summary = "Get all folders", description = "This can only be done by users who has read permission for folders.", security = {
 			@SecurityRequirement(name = "bearer-key") }, tags = { "Folder" })
 	@ApiResponses(value = @ApiResponse(description = "successful operation"))
 	@GetMapping("/folders")
 	@PreAuthorize("(hasAnyRole('ADMIN','USER')) or (hasPermission(#folder, 'READ'))")
-	public List<Folder> getAllFolders(@RequestParam(required = false) String name) {
-		List<Folder> folders = new ArrayList<Folder>();
+	public ResponseEntity<List<?>> getAllFolders(@RequestParam(required = false) String name,
+			@RequestParam(required = false) String include, @RequestParam(required = false) Integer page,
+			@RequestParam(defaultValue = "10") int perPage) throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		List<String> authorities = AclQueries.authorities(authentication);
+		// Without a page every readable folder is returned, as before paging
+		Pageable pageable = page == null ? Pageable.unpaged() : PageRequest.of(page, perPage);
+		Page<Folder> folders;
 		if (name == null)
-			folderRepository.findAll().forEach(folders::add);
+			folders = folderRepository.findReadable(authentication.getName(), authorities, pageable);
 		else
-			folderRepository.findByNameContaining(name).forEach(folders::add);
-		return folders;
+			folders = folderRepository.findReadableByNameContaining(name, authentication.getName(), authorities,
+					pageable);
+		HttpHeaders responseHeaders = new HttpHeaders();
+		responseHeaders.set("x-total-count", String.valueOf(folders.getTotalElements()));
+		List<?> body = DatasetMetadataService.wantsMetadata(include)
+				? metadataService.withMetadata(folders.getContent())
+				: folders.getContent();
+		return new ResponseEntity<>(body, responseHeaders, HttpStatus.OK);
 	}
 
 	@Operation(summary = "Delete a folder", description = "This can only be done by users who has write permission for folders.", security = {
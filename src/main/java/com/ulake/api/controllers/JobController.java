@@ -0,0 +1,52 @@
+package com.ulake.api.controllers;
+
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.ulake.api.payload.response.IngestJobResponse;
+import com.ulake.api.security.services.IngestJobService;
+import com.ulake.api.security.services.impl.UserDetailsImpl;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+
+@CrossOrigin(origins = "*", maxAge = 3600)
+@RestController
+@RequestMapping("/api")
+public class JobController {
+	@Autowired
+	private IngestJobService ingestJobService;
+
+	@Operation(summary = "Get an ingest job by ID", description = "This can only be done by the user who submitted the job.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Job" })
+	@ApiResponses(value = {
+			@ApiResponse(responseCode = "200", description = "successful operation", content = @Content(schema = @Schema(implementation = IngestJobResponse.class))),
+			@ApiResponse(responseCode = "404", description = "Job not found", content = @Content) })
+	@GetMapping("/jobs/{id}")
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	public ResponseEntity<IngestJobResponse> getJobById(@PathVariable("id") String id) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
+		Optional<IngestJobResponse> jobData = ingestJobService.find(id, userDetails.getId());
+		if (jobData.isPresent()) {
+			return new ResponseEntity<>(jobData.get(), HttpStatus.OK);
+		} else {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+	}
+}
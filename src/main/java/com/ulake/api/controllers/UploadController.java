@@ -0,0 +1,158 @@
+package com.ulake.api.controllers;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Optional;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.validation.Valid;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PostAuthorize;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.web.bind.annotation.CrossOrigin;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.PutMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import com.ulake.api.advice.UploadControllerAdvice;
+import com.ulake.api.models.File;
+import com.ulake.api.models.UploadSession;
+import com.ulake.api.models.User;
+import com.ulake.api.payload.request.CreateUploadRequest;
+import com.ulake.api.repository.UploadSessionRepository;
+import com.ulake.api.repository.UserRepository;
+import com.ulake.api.security.services.ResumableUploadService;
+import com.ulake.api.security.services.impl.UserDetailsImpl;
+
+import io.swagger.v3.oas.annotations.Operation;
+import io.swagger.v3.oas.annotations.media.Content;
+import io.swagger.v3.oas.annotations.media.Schema;
+import io.swagger.v3.oas.annotations.responses.ApiResponse;
+import io.swagger.v3.oas.annotations.responses.ApiResponses;
+import io.swagger.v3.oas.annotations.security.SecurityRequirement;
+
+@CrossOrigin(origins = "*", maxAge = 3600)
+@RestController
+@RequestMapping("/api")
+public class UploadController {
+	@Autowired
+	private UploadSessionRepository uploadSessionRepository;
+
+	@Autowired
+	private UserRepository userRepository;
+
+	@Autowired
+	private ResumableUploadService uploadService;
+
+	@Operation(summary = "Start a resumable upload", description = "This can only be done by logged in user having the file permissions.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Upload" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "201", description = "Upload session created") })
+	@PostMapping("/uploads")
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	public ResponseEntity<UploadSession> createUpload(@Valid @RequestBody CreateUploadRequest createUploadRequest)
+			throws IOException {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
+		User uploader = userRepository.findByEmail(userDetails.getEmail());
+
+		UploadSession session = uploadService.create(uploader, createUploadRequest);
+		return withOffset(ResponseEntity.status(HttpStatus.CREATED), session);
+	}
+
+	@Operation(summary = "Get the current offset of a resumable upload", description = "This can only be done by the user who started the upload.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Upload" })
+	@ApiResponses(value = {
+			@ApiResponse(responseCode = "200", description = "successful operation", content = @Content(schema = @Schema(implementation = UploadSession.class))),
+			@ApiResponse(responseCode = "404", description = "Upload not found", content = @Content) })
+	@GetMapping("/uploads/{id}")
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	public ResponseEntity<UploadSession> getUpload(@PathVariable("id") String id) {
+		Optional<UploadSession> sessionData = findOwnSession(id);
+		if (sessionData.isPresent()) {
+			return withOffset(ResponseEntity.ok(), sessionData.get());
+		} else {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+	}
+
+	@Operation(summary = "Upload a chunk of a resumable upload", description = "The chunk is written at the given offset, which must not be past the current offset. This can only be done by the user who started the upload.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Upload" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "200", description = "Chunk staged"),
+			@ApiResponse(responseCode = "404", description = "Upload not found", content = @Content),
+			@ApiResponse(responseCode = "409", description = "Offset mismatch", content = @Content) })
+	@PutMapping(value = "/uploads/{id}", consumes = { MediaType.APPLICATION_OCTET_STREAM_VALUE })
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	public ResponseEntity<UploadSession> uploadChunk(@PathVariable("id") String id,
+			@RequestParam(required = true, value = "offset") long offset, HttpServletRequest request)
+			throws IOException {
+		Optional<UploadSession> sessionData = findOwnSession(id);
+		if (sessionData.isPresent()) {
+			try (InputStream chunk = request.getInputStream()) {
+				UploadSession session = uploadService.writeChunk(sessionData.get(), offset, chunk);
+				return withOffset(ResponseEntity.ok(), session);
+			}
+		} else {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+	}
+
+	@Operation(summary = "Finish a resumable upload", description = "Sends the staged file to core and creates the file. This can only be done by the user who started the upload.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Upload" })
+	@ApiResponses(value = {
+			@ApiResponse(responseCode = "200", description = "successful operation", content = @Content(schema = @Schema(implementation = File.class))),
+			@ApiResponse(responseCode = "404", description = "Upload not found", content = @Content),
+			@ApiResponse(responseCode = "409", description = "Upload incomplete", content = @Content) })
+	@PostMapping("/uploads/{id}/finalize")
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	@PostAuthorize("returnObject.body == null or hasPermission(returnObject.body, 'READ')")
+	public ResponseEntity<File> finalizeUpload(@PathVariable("id") String id) throws IOException {
+		Optional<UploadSession> sessionData = findOwnSession(id);
+		if (sessionData.isPresent()) {
+			return new ResponseEntity<>(uploadService.complete(sessionData.get()), HttpStatus.OK);
+		} else {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+	}
+
+	@Operation(summary = "Abort a resumable upload", description = "This can only be done by the user who started the upload.", security = {
+			@SecurityRequirement(name = "bearer-key") }, tags = { "Upload" })
+	@ApiResponses(value = { @ApiResponse(responseCode = "204", description = "Upload aborted"),
+			@ApiResponse(responseCode = "404", description = "Upload not found") })
+	@DeleteMapping("/uploads/{id}")
+	@PreAuthorize("hasRole('ADMIN') or hasRole('USER')")
+	public ResponseEntity<Void> abortUpload(@PathVariable("id") String id) throws IOException {
+		Optional<UploadSession> sessionData = findOwnSession(id);
+		if (sessionData.isPresent()) {
+			uploadService.abort(sessionData.get());
+			return new ResponseEntity<>(HttpStatus.NO_CONTENT);
+		} else {
+			return new ResponseEntity<>(HttpStatus.NOT_FOUND);
+		}
+	}
+
+	// Sessions are private to the user who started them
+	private Optional<UploadSession> findOwnSession(String id) {
+		Authentication authentication = SecurityContextHolder.getContext().getAuthentication();
+		UserDetailsImpl userDetails = (UserDetailsImpl) authentication.getPrincipal();
+		return uploadSessionRepository.findById(id)
+				.filter(session -> session.getOwner().getId().equals(userDetails.getId()));
+	}
+
+	private static ResponseEntity<UploadSession> withOffset(ResponseEntity.BodyBuilder builder,
+			UploadSession session) {
+		return builder.header(UploadControllerAdvice.UPLOAD_OFFSET_HEADER, String.valueOf(session.getUploadOffset()))
+				.body(session);
+	}
+}
@@ -0,0 +1,54 @@
+package com.ulake.api.models;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+@Entity
+@Table(name = "CLake_content_digests")
+public class ContentDigest extends Auditable<String> {
+	// Hex encoded SHA-256 of the file content
+	@Id
+	@Column(length = 64)
+	private String digest;
+
+	@Column(nullable = false)
+	private String cid;
+
+	@Column(nullable = false)
+	private Long size;
+
+	public ContentDigest() {
+	}
+
+	public ContentDigest(String digest, String cid, Long size) {
+		this.digest = digest;
+		this.cid = cid;
+		this.size = size;
+	}
+
+	public String getDigest() {
+		return digest;
+	}
+
+	public void setDigest(String digest) {
+		this.digest = digest;
+	}
+
+	public String getCid() {
+		return cid;
+	}
+
+	public void setCid(String cid) {
+		this.cid = cid;
+	}
+
+	public Long getSize() {
+		return size;
+	}
+
+	public void setSize(Long size) {
+		this.size = size;
+	}
+}
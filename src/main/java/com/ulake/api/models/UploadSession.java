@@ -0,0 +1,130 @@
+package com.ulake.api.models;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.CollectionTable;
+import javax.persistence.Column;
+import javax.persistence.ElementCollection;
+import javax.persistence.Entity;
+import javax.persistence.FetchType;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+
+@Entity
+@Table(name = "CLake_upload_sessions")
+public class UploadSession extends Auditable<String> {
+	@Id
+	@Column(length = 36)
+	private String id;
+
+	@ManyToOne
+	@JoinColumn(name = "owner_id", nullable = false)
+	@JsonIgnore
+	private User owner;
+
+	private String name;
+
+	private String mimeType;
+
+	// Declared total length, null when the client did not announce it
+	private Long size;
+
+	// Number of contiguous bytes staged from the start of the file
+	@Column(nullable = false)
+	private Long uploadOffset = 0L;
+
+	private String source;
+
+	private String language;
+
+	@ElementCollection(fetch = FetchType.EAGER)
+	@CollectionTable(name = "CLake_upload_session_topics", joinColumns = @JoinColumn(name = "session_id"))
+	@Column(name = "topic")
+	private List<String> topics = new ArrayList<>();
+
+	public UploadSession() {
+	}
+
+	public UploadSession(String id, User owner, String name) {
+		this.id = id;
+		this.owner = owner;
+		this.name = name;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public void setId(String id) {
+		this.id = id;
+	}
+
+	public User getOwner() {
+		return owner;
+	}
+
+	public void setOwner(User owner) {
+		this.owner = owner;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public String getMimeType() {
+		return mimeType;
+	}
+
+	public void setMimeType(String mimeType) {
+		this.mimeType = mimeType;
+	}
+
+	public Long getSize() {
+		return size;
+	}
+
+	public void setSize(Long size) {
+		this.size = size;
+	}
+
+	public Long getUploadOffset() {
+		return uploadOffset;
+	}
+
+	public void setUploadOffset(Long uploadOffset) {
+		this.uploadOffset = uploadOffset;
+	}
+
+	public String getSource() {
+		return source;
+	}
+
+	public void setSource(String source) {
+		this.source = source;
+	}
+
+	public String getLanguage() {
+		return language;
+	}
+
+	public void setLanguage(String language) {
+		this.language = language;
+	}
+
+	public List<String> getTopics() {
+		return topics;
+	}
+
+	public void setTopics(List<String> topics) {
+		this.topics = topics;
+	}
+}
@@ -0,0 +1,54 @@
+package com.ulake.api.payload.response;
+
+import com.ulake.api.models.File;
+
+public class FileUploadResult {
+	private String name;
+	private boolean success;
+	private File file;
+	private String message;
+
+	public FileUploadResult(String name, File file) {
+		this.name = name;
+		this.success = true;
+		this.file = file;
+	}
+
+	public FileUploadResult(String name, String message) {
+		this.name = name;
+		this.success = false;
+		this.message = message;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public boolean isSuccess() {
+		return success;
+	}
+
+	public void setSuccess(boolean success) {
+		this.success = success;
+	}
+
+	public File getFile() {
+		return file;
+	}
+
+	public void setFile(File file) {
+		this.file = file;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public void setMessage(String message) {
+		this.message = message;
+	}
+}
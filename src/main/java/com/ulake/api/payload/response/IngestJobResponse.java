@@ -0,0 +1,66 @@
+package com.ulake.api.payload.response;
+
+import java.util.Date;
+
+import com.ulake.api.constant.IngestJobState;
+
+public class IngestJobResponse {
+	private String id;
+	private String name;
+	private IngestJobState state;
+	private long size;
+	private long bytesProcessed;
+	private Long fileId;
+	private String message;
+	private Date createdDate;
+	private Date finishedDate;
+
+	public IngestJobResponse(String id, String name, IngestJobState state, long size, long bytesProcessed,
+			Long fileId, String message, Date createdDate, Date finishedDate) {
+		this.id = id;
+		this.name = name;
+		this.state = state;
+		this.size = size;
+		this.bytesProcessed = bytesProcessed;
+		this.fileId = fileId;
+		this.message = message;
+		this.createdDate = createdDate;
+		this.finishedDate = finishedDate;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public IngestJobState getState() {
+		return state;
+	}
+
+	public long getSize() {
+		return size;
+	}
+
+	public long getBytesProcessed() {
+		return bytesProcessed;
+	}
+
+	public Long getFileId() {
+		return fileId;
+	}
+
+	public String getMessage() {
+		return message;
+	}
+
+	public Date getCreatedDate() {
+		return createdDate;
+	}
+
+	public Date getFinishedDate() {
+		return finishedDate;
+	}
+}
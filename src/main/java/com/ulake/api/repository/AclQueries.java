@@ -0,0 +1,48 @@
+package com.ulake.api.repository;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.GrantedAuthority;
+
+/**
+ * SQL conditions for native queries that return only rows the caller may
+ * read, checked against the ACL tables in the same statement rather than per
+ * row through hasPermission. Grants are never inherited or denied here, so a
+ * row is readable exactly when one of the caller's sids has a granting READ
+ * entry on it. Queries using these take :username and :authorities, see
+ * {@link #authorities(Authentication)}.
+ */
+public final class AclQueries {
+	private static final String READABLE = "exists (select 1 from acl_object_identity oi"
+			+ " join acl_class c on c.id = oi.object_id_class"
+			+ " join acl_entry e on e.acl_object_identity = oi.id"
+			+ " join acl_sid s on s.id = e.sid"
+			+ " where e.granting = 1 and e.mask = 1"
+			+ " and ((s.principal = 1 and s.sid = :username) or (s.principal = 0 and s.sid in (:authorities)))";
+
+	public static final String READABLE_FILE = READABLE
+			+ " and c.class = 'com.ulake.api.models.File' and oi.object_id_identity = f.id)";
+
+	public static final String READABLE_FOLDER = READABLE
+			+ " and c.class = 'com.ulake.api.models.Folder' and oi.object_id_identity = f.id)";
+
+	private AclQueries() {
+	}
+
+	/**
+	 * The authority sids of the caller. Never empty, as MySQL rejects an empty
+	 * IN list; the blank stand-in matches no sid.
+	 */
+	public static List<String> authorities(Authentication authentication) {
+		List<String> authorities = new ArrayList<>();
+		for (GrantedAuthority authority : authentication.getAuthorities()) {
+			authorities.add(authority.getAuthority());
+		}
+		if (authorities.isEmpty()) {
+			authorities.add("");
+		}
+		return authorities;
+	}
+}
@@ -14,7 +14,7 @@ import com.ulake.api.models.Acl;
 
 @Repository
 @Transactional
-public interface AclRepository extends JpaRepository<Acl, Long> {
+public interface AclRepository extends JpaRepository<Acl, Long>, AclRepositoryCustom {
 	void removeBySourceIdAndTargetNameAndSourceTypeAndTargetType(Long sourceId, String targetName, AclSourceType sourceType,
 			AclTargetType targetType);
 
@@ -0,0 +1,10 @@
+package com.ulake.api.repository;
+
+import java.util.List;
+
+import com.ulake.api.models.Acl;
+
+public interface AclRepositoryCustom {
+	// Insert new rows in one JDBC batch; ids are not read back
+	void insertAll(List<Acl> acls);
+}
@@ -0,0 +1,48 @@
+package com.ulake.api.repository;
+
+import java.sql.Timestamp;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.AuditorAware;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.ulake.api.models.Acl;
+
+/**
+ * JDBC side of {@link AclRepository}. With IDENTITY ids Hibernate inserts one
+ * row per statement, so rows written together go through a JDBC batch here.
+ * It joins the surrounding JPA transaction; the audit columns are filled in
+ * by hand since no entity listener runs.
+ */
+public class AclRepositoryImpl implements AclRepositoryCustom {
+	private static final String INSERT_SQL = "INSERT INTO clake_acls (source_id, target_name, perm, target_type, "
+			+ "source_type, created_by, created_date, last_modified_by, last_modified_date) "
+			+ "VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+
+	@Autowired
+	private JdbcTemplate jdbcTemplate;
+
+	@Autowired
+	private AuditorAware<String> auditorAware;
+
+	@Override
+	public void insertAll(List<Acl> acls) {
+		if (acls.isEmpty()) {
+			return;
+		}
+		String auditor = auditorAware.getCurrentAuditor().orElse(null);
+		Timestamp now = new Timestamp(System.currentTimeMillis());
+		jdbcTemplate.batchUpdate(INSERT_SQL, acls, acls.size(), (statement, acl) -> {
+			statement.setLong(1, acl.getSourceId());
+			statement.setString(2, acl.getTargetId());
+			statement.setString(3, acl.getPerm().name());
+			statement.setString(4, acl.getTargetType().name());
+			statement.setString(5, acl.getSourceType().name());
+			statement.setString(6, auditor);
+			statement.setTimestamp(7, now);
+			statement.setString(8, auditor);
+			statement.setTimestamp(9, now);
+		});
+	}
+}
@@ -0,0 +1,13 @@
+package com.ulake.api.repository;
+
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import com.ulake.api.models.ContentDigest;
+
+@Repository
+public interface ContentDigestRepository extends JpaRepository<ContentDigest, String> {
+	Optional<ContentDigest> findByDigestAndSize(String digest, Long size);
+}
@@ -1,11 +1,14 @@
 package com.ulake.api.repository;
 
+import java.util.Collection;
 import java.util.List;
 import java.util.Optional;
 
+import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
-import org.springframework.security.access.prepost.PostFilter;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.security.access.prepost.PreAuthorize;
 
 import com.ulake.api.models.File;
@@ -13,17 +16,23 @@ import com.ulake.api.models.File;
 public interface FileRepository extends JpaRepository<File, Long> {
 	Boolean existsByName(String name);
 
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<File> findByNameContaining(String name);
+	// The findReadable queries return only files the given sids may read
+	@Query(value = "select * from clake_files f where " + AclQueries.READABLE_FILE
+			+ " order by f.id", countQuery = "select count(*) from clake_files f where "
+					+ AclQueries.READABLE_FILE, nativeQuery = true)
+	Page<File> findReadable(@Param("username") String username,
+			@Param("authorities") Collection<String> authorities, Pageable pageable);
 
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<File> findByNameContaining(String name, Pageable pageable);
+	@Query(value = "select * from clake_files f where f.name like concat('%', :name, '%') and "
+			+ AclQueries.READABLE_FILE + " order by f.id", countQuery = "select count(*) from clake_files f"
+					+ " where f.name like concat('%', :name, '%') and " + AclQueries.READABLE_FILE, nativeQuery = true)
+	Page<File> findReadableByNameContaining(@Param("name") String name, @Param("username") String username,
+			@Param("authorities") Collection<String> authorities, Pageable pageable);
 
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<File> findAll();
-	
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<File> findByIsFirstNodeTrue();
+	@Query(value = "select * from clake_files f where f.is_first_node = 1 and " + AclQueries.READABLE_FILE
+			+ " order by f.id", nativeQuery = true)
+	List<File> findReadableByIsFirstNodeTrue(@Param("username") String username,
+			@Param("authorities") Collection<String> authorities);
 
 	@PreAuthorize("hasPermission(#id, 'com.ulake.api.models.File', 'READ')")
 	File findByName(String name);
@@ -34,6 +43,9 @@ public interface FileRepository extends JpaRepository<File, Long> {
 	@PreAuthorize("hasPermission(#id, 'com.ulake.api.models.File', 'WRITE')")
 	File removeById(Long id);
 
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<File> findByFolderId(Long folderId);
+	@Query(value = "select * from clake_files f where f.folder_id = :folderId and " + AclQueries.READABLE_FILE
+			+ " order by f.id", countQuery = "select count(*) from clake_files f where f.folder_id = :folderId and "
+					+ AclQueries.READABLE_FILE, nativeQuery = true)
+	Page<File> findReadableByFolderId(@Param("folderId") Long folderId, @Param("username") String username,
+			@Param("authorities") Collection<String> authorities, Pageable pageable);
 }
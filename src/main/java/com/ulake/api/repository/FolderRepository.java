@@ -1,12 +1,18 @@
 package com.ulake.api.repository;
 
+import java.util.Collection;
+import java.util.Date;
 import java.util.List;
 import java.util.Optional;
 
+import javax.transaction.Transactional;
+
 import org.springframework.data.domain.Page;
 import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
-import org.springframework.security.access.prepost.PostFilter;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.stereotype.Repository;
 
@@ -14,17 +20,23 @@ import com.ulake.api.models.Folder;
 
 @Repository
 public interface FolderRepository extends JpaRepository<Folder, Long> {
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<Folder> findByNameContaining(String name);
-
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	Page<Folder> findByNameContaining(String name, Pageable pageable);
+	// The findReadable queries return only folders the given sids may read
+	@Query(value = "select * from clake_folders f where " + AclQueries.READABLE_FOLDER
+			+ " order by f.id", countQuery = "select count(*) from clake_folders f where "
+					+ AclQueries.READABLE_FOLDER, nativeQuery = true)
+	Page<Folder> findReadable(@Param("username") String username,
+			@Param("authorities") Collection<String> authorities, Pageable pageable);
 
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<Folder> findAll();
+	@Query(value = "select * from clake_folders f where f.name like concat('%', :name, '%') and "
+			+ AclQueries.READABLE_FOLDER + " order by f.id", countQuery = "select count(*) from clake_folders f"
+					+ " where f.name like concat('%', :name, '%') and " + AclQueries.READABLE_FOLDER, nativeQuery = true)
+	Page<Folder> findReadableByNameContaining(@Param("name") String name, @Param("username") String username,
+			@Param("authorities") Collection<String> authorities, Pageable pageable);
 
-	@PostFilter("hasPermission(filterObject, 'READ')")
-	List<Folder> findByIsFirstNodeTrue();
+	@Query(value = "select * from clake_folders f where f.is_first_node = 1 and " + AclQueries.READABLE_FOLDER
+			+ " order by f.id", nativeQuery = true)
+	List<Folder> findReadableByIsFirstNodeTrue(@Param("username") String username,
+			@Param("authorities") Collection<String> authorities);
 
 	@PreAuthorize("hasPermission(#id, 'com.ulake.api.models.Folder', 'READ')")
 	Optional<Folder> findByName(String name);
@@ -34,4 +46,26 @@ public interface FolderRepository extends JpaRepository<Folder, Long> {
 
 	@PreAuthorize("hasPermission(#id, 'com.ulake.api.models.Folder', 'WRITE')")
 	Folder removeById(Long id);
+
+	// Used by the folder mutation queue, which runs outside any request
+	@Query("select f.cid from Folder f where f.id = :id")
+	Optional<String> findCidById(@Param("id") Long id);
+
+	// Writes the cid alone, leaving concurrent changes to other columns intact
+	@Transactional
+	@Modifying
+	@Query("update Folder f set f.cid = :cid, f.lastModifiedDate = :now where f.id = :id")
+	int updateCid(@Param("id") Long id, @Param("cid") String cid, @Param("now") Date now);
+
+	// Like updateCid, these leave out the cid the mutation queue may be storing
+	@Transactional
+	@Modifying
+	@Query("update Folder f set f.name = :name, f.datasetId = :datasetId, f.lastModifiedDate = :now where f.id = :id")
+	int updateNameAndDatasetId(@Param("id") Long id, @Param("name") String name,
+			@Param("datasetId") String datasetId, @Param("now") Date now);
+
+	@Transactional
+	@Modifying
+	@Query("update Folder f set f.parent = :parent, f.isFirstNode = false, f.lastModifiedDate = :now where f.id = :id")
+	int updateParent(@Param("id") Long id, @Param("parent") Folder parent, @Param("now") Date now);
 }
@@ -0,0 +1,15 @@
+package com.ulake.api.repository;
+
+import java.util.Date;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.stereotype.Repository;
+
+import com.ulake.api.models.UploadSession;
+
+@Repository
+public interface UploadSessionRepository extends JpaRepository<UploadSession, String> {
+	// Sessions are saved whenever their offset moves, so this finds idle ones
+	List<UploadSession> findByLastModifiedDateBefore(Date cutoff);
+}
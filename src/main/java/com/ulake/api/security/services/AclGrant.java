@@ -0,0 +1,40 @@
+package com.ulake.api.security.services;
+
+import org.springframework.security.acls.domain.GrantedAuthoritySid;
+import org.springframework.security.acls.domain.PrincipalSid;
+import org.springframework.security.acls.model.Permission;
+import org.springframework.security.acls.model.Sid;
+
+/**
+ * A permission to grant to a sid, used to apply several grants at once.
+ */
+public class AclGrant {
+	private final Sid sid;
+	private final Permission permission;
+
+	public AclGrant(Sid sid, Permission permission) {
+		this.sid = sid;
+		this.permission = permission;
+	}
+
+	public static AclGrant forUser(String username, Permission permission) {
+		return new AclGrant(new PrincipalSid(username), permission);
+	}
+
+	public static AclGrant forAuthority(String authority, Permission permission) {
+		return new AclGrant(new GrantedAuthoritySid(authority), permission);
+	}
+
+	public Sid getSid() {
+		return sid;
+	}
+
+	public Permission getPermission() {
+		return permission;
+	}
+
+	@Override
+	public String toString() {
+		return permission + " to " + sid;
+	}
+}
@@ -0,0 +1,278 @@
+package com.ulake.api.security.services;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.compress.archivers.ArchiveEntry;
+import org.apache.commons.compress.archivers.ArchiveException;
+import org.apache.commons.compress.archivers.ArchiveInputStream;
+import org.apache.commons.compress.archivers.ArchiveStreamFactory;
+import org.apache.commons.compress.compressors.CompressorException;
+import org.apache.commons.compress.compressors.CompressorStreamFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.ulake.api.advice.ArchiveLimitException;
+import com.ulake.api.constant.AclSourceType;
+import com.ulake.api.models.File;
+import com.ulake.api.models.Folder;
+import com.ulake.api.models.User;
+import com.ulake.api.repository.FileRepository;
+import com.ulake.api.repository.FolderRepository;
+
+/**
+ * Expands a zip or tar archive (optionally compressed) into a folder tree.
+ * Entries are streamed to core one at a time straight from the request body.
+ * Directories are assembled in core once all entries are in, and the whole
+ * tree is then saved and granted in one transaction. The number of entries,
+ * their expanded size and the nesting depth are capped; going over any of
+ * them fails the request with 413.
+ */
+@Service
+public class ArchiveExpansionService {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ArchiveExpansionService.class);
+
+	@Value("${app.archive.maxEntries:10000}")
+	private int maxEntries;
+
+	@Value("${app.archive.maxExpandedBytes:10737418240}")
+	private long maxExpandedBytes;
+
+	@Value("${app.archive.maxDepth:32}")
+	private int maxDepth;
+
+	@Autowired
+	private FileIngestService ingestService;
+
+	@Autowired
+	private ComlakeCoreService coreService;
+
+	@Autowired
+	private FolderRepository folderRepository;
+
+	@Autowired
+	private FileRepository fileRepository;
+
+	@Autowired
+	private LocalPermissionService permissionService;
+
+	@Autowired
+	private PlatformTransactionManager transactionManager;
+
+	public Folder expand(User owner, String rootName, InputStream data, String source, List<String> topics,
+			String language) throws IOException {
+		Node root = new Node(new Folder(owner, rootName));
+		Map<String, Node> folders = new LinkedHashMap<>();
+		folders.put("", root);
+		List<File> files = new ArrayList<>();
+
+		try (ArchiveInputStream archive = openArchive(data)) {
+			ExpandedBytes expanded = new ExpandedBytes(archive);
+			int entries = 0;
+			ArchiveEntry entry;
+			while ((entry = archive.getNextEntry()) != null) {
+				if (++entries > maxEntries) {
+					throw new ArchiveLimitException("Archive has more than " + maxEntries + " entries");
+				}
+				if (!archive.canReadEntryData(entry)) {
+					LOGGER.error("Skip unreadable archive entry {}", entry.getName());
+					continue;
+				}
+				String path = normalize(entry.getName());
+				if (path.isEmpty()) {
+					continue;
+				}
+				if (path.split("/").length > maxDepth) {
+					throw new ArchiveLimitException("Archive nests deeper than " + maxDepth + " levels");
+				}
+				if (entry.isDirectory()) {
+					folderFor(path, owner, folders);
+					continue;
+				}
+				// Refuse a declared size up front; a missing or false one is
+				// caught while reading
+				expanded.expect(entry.getSize());
+
+				int slash = path.lastIndexOf('/');
+				Node parent = folderFor(slash < 0 ? "" : path.substring(0, slash), owner, folders);
+				String fileName = path.substring(slash + 1);
+				// The archive stream ends at the end of the current entry
+				File fileInfo = ingestService.prepare(owner, fileName, expanded, entry.getSize(),
+						URLConnection.guessContentTypeFromName(fileName), source, topics, language);
+				fileInfo.setFolder(parent.folder);
+				fileInfo.setIsFirstNode(false);
+				parent.files.add(fileInfo);
+				files.add(fileInfo);
+			}
+
+			buildDirectory(root, source, topics, language);
+		} catch (IOException | RuntimeException e) {
+			// Core has no delete, so what was already stored stays there
+			// unreferenced; record it so it can be traced
+			List<String> cids = new ArrayList<>(files.size());
+			files.forEach(fileInfo -> cids.add(fileInfo.getCid()));
+			LOGGER.warn("Expanding archive {} failed, {} files already in core are left unreferenced: {}", rootName,
+					cids.size(), cids);
+			throw e;
+		}
+
+		List<Folder> folderList = new ArrayList<>();
+		folders.values().forEach(node -> folderList.add(node.folder));
+		save(owner, folderList, files);
+		return root.folder;
+	}
+
+	private static ArchiveInputStream openArchive(InputStream data) throws IOException {
+		InputStream in = new BufferedInputStream(data);
+		try {
+			in = new BufferedInputStream(new CompressorStreamFactory().createCompressorInputStream(in));
+		} catch (CompressorException e) {
+			// Not compressed, read the archive as is
+		}
+		try {
+			return new ArchiveStreamFactory().createArchiveInputStream(in);
+		} catch (ArchiveException e) {
+			throw new IOException("Unsupported archive format", e);
+		}
+	}
+
+	// Entry names are relative paths; reject anything escaping the root
+	private static String normalize(String name) throws IOException {
+		List<String> parts = new ArrayList<>();
+		for (String part : name.replace('\\', '/').split("/")) {
+			if (part.isEmpty() || part.equals(".")) {
+				continue;
+			}
+			if (part.equals("..")) {
+				throw new IOException("Archive entry escapes the root folder: " + name);
+			}
+			parts.add(part);
+		}
+		return String.join("/", parts);
+	}
+
+	private static Node folderFor(String path, User owner, Map<String, Node> folders) {
+		Node node = folders.get(path);
+		if (node != null) {
+			return node;
+		}
+		int slash = path.lastIndexOf('/');
+		Node parent = folderFor(slash < 0 ? "" : path.substring(0, slash), owner, folders);
+		node = new Node(new Folder(owner, path.substring(slash + 1)));
+		node.folder.setParent(parent.folder);
+		node.folder.setIsFirstNode(false);
+		parent.folder.addSubfolder(node.folder);
+		parent.subfolders.add(node);
+		folders.put(path, node);
+		return node;
+	}
+
+	// Children first: a directory cid can only be built once the cids of
+	// everything inside it are known
+	private void buildDirectory(Node node, String source, List<String> topics, String language) throws IOException {
+		for (Node subfolder : node.subfolders) {
+			buildDirectory(subfolder, source, topics, language);
+		}
+
+		String cid = coreService.postFolder();
+		for (File fileInfo : node.files) {
+			cid = coreService.cpToDir(fileInfo.getCid(), cid, fileInfo.getName());
+		}
+		for (Node subfolder : node.subfolders) {
+			cid = coreService.cpToDir(subfolder.folder.getCid(), cid, subfolder.folder.getName());
+		}
+		node.folder.setCid(coreService.warmListing(cid));
+
+		String datasetId = coreService.addDataset(cid, node.folder.getName(), source, topics, null, null, language);
+		node.folder.setDatasetId(datasetId);
+	}
+
+	private void save(User owner, List<Folder> folders, List<File> files) {
+		new TransactionTemplate(transactionManager).executeWithoutResult(status -> {
+			// Parents come before their children in the list
+			folderRepository.saveAll(folders);
+			fileRepository.saveAll(files);
+
+			permissionService.grantOwner(folders, AclSourceType.FOLDER, owner.getUsername());
+			permissionService.grantOwner(files, AclSourceType.FILE, owner.getUsername());
+		});
+	}
+
+	// Counts the bytes expanded from all entries against the limit
+	private class ExpandedBytes extends FilterInputStream {
+		private long count;
+
+		ExpandedBytes(InputStream in) {
+			super(in);
+		}
+
+		void expect(long size) {
+			if (size > 0 && count + size > maxExpandedBytes) {
+				throw tooLarge();
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			int b = super.read();
+			if (b >= 0) {
+				add(1);
+			}
+			return b;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			int n = super.read(b, off, len);
+			if (n > 0) {
+				add(n);
+			}
+			return n;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			long skipped = super.skip(n);
+			add(skipped);
+			return skipped;
+		}
+
+		// The archive stays open for the next entry
+		@Override
+		public void close() {
+		}
+
+		private void add(long n) {
+			count += n;
+			if (count > maxExpandedBytes) {
+				throw tooLarge();
+			}
+		}
+
+		private ArchiveLimitException tooLarge() {
+			return new ArchiveLimitException("Archive expands to more than " + maxExpandedBytes + " bytes");
+		}
+	}
+
+	private static class Node {
+		private final Folder folder;
+		private final List<Node> subfolders = new ArrayList<>();
+		private final List<File> files = new ArrayList<>();
+
+		Node(Folder folder) {
+			this.folder = folder;
+		}
+	}
+}
@@ -0,0 +1,570 @@
+package com.ulake.api.security.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * On-disk cache of file content keyed by cid. Content under a cid never
+ * changes, so entries never go stale; they are only evicted, least recently
+ * used first, to stay under the size cap.
+ * <p>
+ * Entries are filled from core in the background. At most one fill per cid is
+ * in flight: every concurrent reader of that cid follows the same partial file
+ * as it grows, so a burst of downloads costs one upstream transfer. A fill
+ * that will be kept reserves its size against the cap as soon as core
+ * announces it, so partial files are counted before they are committed. A
+ * fill that will not be kept (the cache is off or the object is too large)
+ * only runs while someone reads it: when its last reader closes, the transfer
+ * from core is aborted and the partial file dropped.
+ */
+@Service
+public class BlobCacheService {
+	private static final Logger LOGGER = LoggerFactory.getLogger(BlobCacheService.class);
+
+	private static final String PARTIAL_SUFFIX = ".partial";
+
+	// When off, fills still coalesce readers but nothing is kept afterwards
+	@Value("${app.cache.blob.enabled:true}")
+	private boolean enabled;
+
+	@Value("${app.cache.blob.dir}")
+	private String dir;
+
+	@Value("${app.cache.blob.maxBytes:10737418240}")
+	private long maxBytes;
+
+	// Larger objects are streamed to their readers but not kept
+	@Value("${app.cache.blob.maxObjectBytes:2147483648}")
+	private long maxObjectBytes;
+
+	@Value("${app.coreBufferSize:65536}")
+	private int bufferSize;
+
+	@Autowired
+	private ComlakeCoreService coreService;
+
+	@Autowired
+	@Qualifier("blobFillExecutor")
+	private ThreadPoolTaskExecutor blobFillExecutor;
+
+	// Access ordered: iteration starts at the least recently used cid
+	private final LinkedHashMap<String, Long> entries = new LinkedHashMap<>(256, 0.75f, true);
+	private long cachedBytes;
+	// Announced sizes of fills in flight that will be kept, guarded by entries
+	private long reservedBytes;
+
+	// Fills in flight, guarded by itself. Readers attach under the same lock the
+	// fill is removed with, so nobody attaches to a partial file being dropped.
+	private final Map<String, Fill> inFlight = new HashMap<>();
+
+	private final Counter hits;
+	private final Counter misses;
+	private final Counter coalesced;
+	private final Counter evictions;
+	private final Counter abandoned;
+	private final Counter bytesServed;
+
+	public BlobCacheService(MeterRegistry registry) {
+		hits = Counter.builder("blob.cache.requests").tag("result", "hit").register(registry);
+		misses = Counter.builder("blob.cache.requests").tag("result", "miss").register(registry);
+		coalesced = Counter.builder("blob.cache.coalesced").register(registry);
+		evictions = Counter.builder("blob.cache.evictions").register(registry);
+		abandoned = Counter.builder("blob.cache.abandoned").description("Fills aborted after their last reader left")
+				.register(registry);
+		bytesServed = Counter.builder("blob.cache.served").baseUnit("bytes").register(registry);
+		Gauge.builder("blob.cache.size", this, cache -> cache.size()).baseUnit("bytes").register(registry);
+		Gauge.builder("blob.cache.entries", this, cache -> cache.count()).register(registry);
+		Gauge.builder("blob.cache.fills", this, cache -> cache.fillCount()).register(registry);
+		Gauge.builder("blob.cache.reserved", this, cache -> cache.reserved()).baseUnit("bytes").register(registry);
+		Gauge.builder("blob.cache.hit.ratio", this, cache -> {
+			double total = cache.hits.count() + cache.misses.count();
+			return total == 0 ? 0 : cache.hits.count() / total;
+		}).register(registry);
+	}
+
+	@PostConstruct
+	public void init() throws IOException {
+		Path root = Paths.get(dir);
+		Files.createDirectories(root);
+
+		// Rebuild the index from what is on disk, oldest access first
+		List<Path> blobs = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(root)) {
+			for (Path path : stream) {
+				if (!enabled || path.getFileName().toString().endsWith(PARTIAL_SUFFIX)) {
+					Files.deleteIfExists(path);
+				} else {
+					blobs.add(path);
+				}
+			}
+		}
+		blobs.sort(Comparator.comparingLong(BlobCacheService::lastAccess));
+		synchronized (entries) {
+			for (Path path : blobs) {
+				long size = Files.size(path);
+				entries.put(path.getFileName().toString(), size);
+				cachedBytes += size;
+			}
+		}
+		evict();
+		LOGGER.info("Blob cache at {} holds {} bytes", root, size());
+	}
+
+	// The cached file for the cid, counted as a hit or a miss
+	public Optional<Path> lookup(String cid) {
+		if (!enabled) {
+			return Optional.empty();
+		}
+		synchronized (entries) {
+			if (entries.get(cid) != null) {
+				hits.increment();
+				return Optional.of(blobPath(cid));
+			}
+		}
+		misses.increment();
+		return Optional.empty();
+	}
+
+	// Drop an entry whose file has disappeared from disk
+	public void remove(String cid) {
+		synchronized (entries) {
+			Long size = entries.remove(cid);
+			if (size != null) {
+				cachedBytes -= size;
+			}
+		}
+	}
+
+	public void recordServed(long bytes) {
+		bytesServed.increment(bytes);
+	}
+
+	/**
+	 * Read the cid through the fill in flight for it, starting one if there is
+	 * none. The stream waits for the writer when it catches up.
+	 *
+	 * @throws TaskRejectedException when a new fill is needed but every fill
+	 *                               thread is busy
+	 */
+	public Reader read(String cid) throws IOException {
+		synchronized (inFlight) {
+			Fill fill = inFlight.get(cid);
+			if (fill != null) {
+				coalesced.increment();
+			} else {
+				fill = start(cid);
+			}
+			return fill.newReader();
+		}
+	}
+
+	/**
+	 * Make sure a fill is in flight for the cid of the given total size without
+	 * reading it. Does nothing when the object would not be kept, or when the
+	 * fill threads are busy.
+	 */
+	public void warm(String cid, long total) {
+		if (!enabled || total < 0 || total > maxObjectBytes) {
+			return;
+		}
+		synchronized (inFlight) {
+			if (inFlight.containsKey(cid)) {
+				return;
+			}
+			try {
+				start(cid);
+			} catch (TaskRejectedException | IOException e) {
+				LOGGER.debug("Not warming {}", cid, e);
+			}
+		}
+	}
+
+	// Called holding the inFlight lock
+	private Fill start(String cid) throws IOException {
+		Path partial = Paths.get(dir, cid + "." + UUID.randomUUID() + PARTIAL_SUFFIX);
+		Files.createFile(partial);
+		Fill fill = new Fill(cid, partial);
+		try {
+			blobFillExecutor.execute(fill::run);
+		} catch (TaskRejectedException e) {
+			Files.deleteIfExists(partial);
+			throw e;
+		}
+		inFlight.put(cid, fill);
+		return fill;
+	}
+
+	/**
+	 * True while no eviction can start soon: no fill is in flight and there is
+	 * room for one more object of the largest size kept. A path handed to the
+	 * connector by name is only safe to use then, as it is opened later.
+	 */
+	public boolean isEvictionIdle() {
+		synchronized (inFlight) {
+			if (!inFlight.isEmpty()) {
+				return false;
+			}
+		}
+		synchronized (entries) {
+			return cachedBytes + reservedBytes + maxObjectBytes <= maxBytes;
+		}
+	}
+
+	// Count a fill that will be kept against the cap before it is committed
+	private void reserve(Fill fill, long bytes) {
+		if (!enabled || bytes < 0 || bytes > maxObjectBytes) {
+			return;
+		}
+		synchronized (entries) {
+			reservedBytes += bytes;
+			fill.reserved = bytes;
+		}
+		evict();
+	}
+
+	private void finish(Fill fill, boolean complete) {
+		synchronized (inFlight) {
+			inFlight.remove(fill.cid, fill);
+		}
+		synchronized (entries) {
+			reservedBytes -= fill.reserved;
+			fill.reserved = 0;
+		}
+		// Readers already attached keep their open channel to the partial file
+		try {
+			if (complete && enabled && fill.written <= maxObjectBytes) {
+				commit(fill.cid, fill.partial, fill.written);
+			} else {
+				Files.deleteIfExists(fill.partial);
+			}
+		} catch (IOException e) {
+			LOGGER.error("Could not commit cached {}", fill.cid, e);
+			try {
+				Files.deleteIfExists(fill.partial);
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+		}
+	}
+
+	private void commit(String cid, Path partial, long size) throws IOException {
+		Files.move(partial, blobPath(cid), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+		synchronized (entries) {
+			Long previous = entries.put(cid, size);
+			cachedBytes += size - (previous != null ? previous : 0);
+		}
+		evict();
+	}
+
+	private void evict() {
+		List<String> evicted = new ArrayList<>();
+		synchronized (entries) {
+			Iterator<Map.Entry<String, Long>> it = entries.entrySet().iterator();
+			while (cachedBytes + reservedBytes > maxBytes && it.hasNext()) {
+				Map.Entry<String, Long> eldest = it.next();
+				cachedBytes -= eldest.getValue();
+				evicted.add(eldest.getKey());
+				it.remove();
+			}
+		}
+		// Readers that already opened an evicted file keep reading it
+		for (String cid : evicted) {
+			try {
+				Files.deleteIfExists(blobPath(cid));
+				evictions.increment();
+			} catch (IOException e) {
+				LOGGER.warn("Could not delete evicted blob {}", cid, e);
+			}
+		}
+	}
+
+	private long size() {
+		synchronized (entries) {
+			return cachedBytes;
+		}
+	}
+
+	private long reserved() {
+		synchronized (entries) {
+			return reservedBytes;
+		}
+	}
+
+	private int count() {
+		synchronized (entries) {
+			return entries.size();
+		}
+	}
+
+	private int fillCount() {
+		synchronized (inFlight) {
+			return inFlight.size();
+		}
+	}
+
+	private Path blobPath(String cid) {
+		return Paths.get(dir, cid);
+	}
+
+	private static long lastAccess(Path path) {
+		try {
+			return Files.readAttributes(path, BasicFileAttributes.class).lastAccessTime().toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * A cid being copied from core into a partial file. Readers follow the file
+	 * and block while they are ahead of the writer.
+	 */
+	private class Fill {
+		private final String cid;
+		private final Path partial;
+		private long written;
+		private long total = -1;
+		private boolean started;
+		private boolean done;
+		// Kept as thrown, so overload and 4xx from core reach the controller
+		// advice as they would without the cache
+		private Exception failure;
+		// Bytes reserved against the cap, guarded by entries
+		private long reserved;
+		private int readers;
+		private boolean aborted;
+		private CoreContent content;
+
+		Fill(String cid, Path partial) {
+			this.cid = cid;
+			this.partial = partial;
+		}
+
+		private void run() {
+			try (CoreContent content = coreService.openFile(cid);
+					FileChannel out = FileChannel.open(partial, StandardOpenOption.WRITE);
+					ReadableByteChannel in = Channels.newChannel(content.getBody())) {
+				reserve(this, content.getContentLength());
+				synchronized (this) {
+					this.content = content;
+					total = content.getContentLength();
+					started = true;
+					notifyAll();
+				}
+				ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+				while (!abandoned() && in.read(buffer) != -1) {
+					buffer.flip();
+					while (buffer.hasRemaining()) {
+						out.write(buffer);
+					}
+					buffer.clear();
+					synchronized (this) {
+						written = out.position();
+						notifyAll();
+					}
+				}
+				synchronized (this) {
+					if (aborted) {
+						throw new IOException("Nobody reads " + cid + " any more");
+					}
+					done = true;
+					total = written;
+					notifyAll();
+				}
+			} catch (IOException | RuntimeException e) {
+				synchronized (this) {
+					if (aborted) {
+						LOGGER.debug("Abandoned fill of {} after {} bytes", cid, written);
+					} else {
+						LOGGER.error("Could not fetch {} from core", cid, e);
+					}
+					failure = e;
+					notifyAll();
+				}
+				finish(this, false);
+				return;
+			}
+			finish(this, true);
+		}
+
+		// Called holding the inFlight lock, so a fill being abandoned gets no new
+		// readers
+		private Reader newReader() throws IOException {
+			Reader reader = new Reader(this, FileChannel.open(partial, StandardOpenOption.READ));
+			synchronized (this) {
+				readers++;
+			}
+			return reader;
+		}
+
+		private void detach() {
+			CoreContent open;
+			synchronized (inFlight) {
+				synchronized (this) {
+					readers--;
+					if (readers > 0 || done || failure != null || aborted || keepable()) {
+						return;
+					}
+					abort();
+					open = content;
+				}
+			}
+			// Drops the connection, which also wakes the writer if it is blocked
+			// reading from core
+			if (open != null) {
+				open.close();
+			}
+		}
+
+		// Checked by the writer between chunks: an object that will not be kept
+		// is only worth fetching while it is read
+		private boolean abandoned() {
+			synchronized (this) {
+				if (aborted || keepable()) {
+					return aborted;
+				}
+			}
+			synchronized (inFlight) {
+				synchronized (this) {
+					if (readers == 0 && !aborted) {
+						abort();
+					}
+					return aborted;
+				}
+			}
+		}
+
+		// Called holding the inFlight lock and the fill's monitor
+		private void abort() {
+			aborted = true;
+			inFlight.remove(cid, this);
+			abandoned.increment();
+		}
+
+		// Called holding the fill's monitor
+		private boolean keepable() {
+			return enabled && (total >= 0 ? total : written) <= maxObjectBytes;
+		}
+
+		private synchronized long awaitStarted() throws IOException {
+			while (!started && failure == null) {
+				awaitChange();
+			}
+			rethrowFailure();
+			return total;
+		}
+
+		private synchronized long awaitAvailable(long position) throws IOException {
+			while (written <= position && !done && failure == null) {
+				awaitChange();
+			}
+			rethrowFailure();
+			return written;
+		}
+
+		// Called holding the fill's monitor
+		private void rethrowFailure() throws IOException {
+			if (failure instanceof RuntimeException) {
+				throw (RuntimeException) failure;
+			}
+			if (failure != null) {
+				throw (IOException) failure;
+			}
+		}
+
+		private void awaitChange() throws IOException {
+			try {
+				wait(TimeUnit.SECONDS.toMillis(1));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for core", e);
+			}
+		}
+	}
+
+	/**
+	 * One reader of a fill, positioned at the first byte.
+	 */
+	public static class Reader extends InputStream {
+		private final Fill fill;
+		private final FileChannel channel;
+		private long position;
+
+		private Reader(Fill fill, FileChannel channel) {
+			this.fill = fill;
+			this.channel = channel;
+		}
+
+		// Wait until core answered, then report its length (-1 if unknown)
+		public long awaitTotal() throws IOException {
+			return fill.awaitStarted();
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] one = new byte[1];
+			return read(one, 0, 1) == -1 ? -1 : one[0] & 0xFF;
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if (len == 0) {
+				return 0;
+			}
+			long available = fill.awaitAvailable(position);
+			if (available <= position) {
+				return -1;
+			}
+			int toRead = (int) Math.min(len, available - position);
+			int read = channel.read(ByteBuffer.wrap(b, off, toRead), position);
+			if (read > 0) {
+				position += read;
+			}
+			return read;
+		}
+
+		@Override
+		public void close() throws IOException {
+			try {
+				channel.close();
+			} finally {
+				fill.detach();
+			}
+		}
+	}
+}
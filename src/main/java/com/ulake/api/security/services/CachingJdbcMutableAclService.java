@@ -0,0 +1,101 @@
+package com.ulake.api.security.services;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.springframework.security.acls.jdbc.JdbcMutableAclService;
+import org.springframework.security.acls.jdbc.LookupStrategy;
+import org.springframework.security.acls.model.AclCache;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * JdbcMutableAclService that remembers the primary keys of acl_sid and
+ * acl_class rows. Every ACE written looks up its sid and every new ACL its
+ * class, yet there are only a handful of each; rows are never deleted, so a
+ * key once seen stays valid. Inside a transaction a key is only shared once it
+ * commits, whether this call created the row or found it: the row may have
+ * been created earlier in the same transaction and vanish on rollback. Until
+ * then it is reused by that transaction alone.
+ */
+public class CachingJdbcMutableAclService extends JdbcMutableAclService {
+	private final Map<String, Long> sidKeys = new ConcurrentHashMap<>();
+	private final Map<String, Long> classKeys = new ConcurrentHashMap<>();
+
+	public CachingJdbcMutableAclService(DataSource dataSource, LookupStrategy lookupStrategy, AclCache aclCache) {
+		super(dataSource, lookupStrategy, aclCache);
+	}
+
+	@Override
+	protected Long createOrRetrieveSidPrimaryKey(String sidName, boolean sidIsPrincipal, boolean allowCreate) {
+		String key = (sidIsPrincipal ? "P:" : "A:") + sidName;
+		return lookup(sidKeys, pending -> pending.sidKeys, key,
+				() -> super.createOrRetrieveSidPrimaryKey(sidName, sidIsPrincipal, allowCreate));
+	}
+
+	@Override
+	protected Long createOrRetrieveClassPrimaryKey(String type, boolean allowCreate, Class idType) {
+		return lookup(classKeys, pending -> pending.classKeys, type,
+				() -> super.createOrRetrieveClassPrimaryKey(type, allowCreate, idType));
+	}
+
+	private Long lookup(Map<String, Long> shared, Function<Pending, Map<String, Long>> local, String key,
+			Supplier<Long> query) {
+		Long cached = shared.get(key);
+		if (cached != null) {
+			return cached;
+		}
+		Pending pending = pending();
+		if (pending == null) {
+			// Outside a transaction every statement commits on its own
+			Long found = query.get();
+			if (found != null) {
+				shared.put(key, found);
+			}
+			return found;
+		}
+		Long seen = local.apply(pending).get(key);
+		if (seen != null) {
+			return seen;
+		}
+		Long found = query.get();
+		if (found != null) {
+			local.apply(pending).put(key, found);
+		}
+		return found;
+	}
+
+	// Keys seen by the current transaction, or null outside one
+	private Pending pending() {
+		if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+			return null;
+		}
+		Pending pending = (Pending) TransactionSynchronizationManager.getResource(this);
+		if (pending == null) {
+			Pending created = new Pending();
+			TransactionSynchronizationManager.bindResource(this, created);
+			TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+				@Override
+				public void afterCompletion(int status) {
+					TransactionSynchronizationManager.unbindResourceIfPossible(CachingJdbcMutableAclService.this);
+					if (status == STATUS_COMMITTED) {
+						sidKeys.putAll(created.sidKeys);
+						classKeys.putAll(created.classKeys);
+					}
+				}
+			});
+			pending = created;
+		}
+		return pending;
+	}
+
+	private static class Pending {
+		private final Map<String, Long> sidKeys = new HashMap<>();
+		private final Map<String, Long> classKeys = new HashMap<>();
+	}
+}
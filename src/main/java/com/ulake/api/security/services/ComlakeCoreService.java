@@ -1,78 +1,283 @@
 package com.ulake.api.security.services;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpRequest.BodyPublisher;
+import java.net.http.HttpRequest.BodyPublishers;
+import java.net.http.HttpResponse;
+import java.net.http.HttpResponse.BodyHandlers;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
 import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
 
 import org.json.JSONArray;
 import org.json.JSONObject;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
 import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpEntity;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
-import org.springframework.http.converter.HttpMessageConverter;
-import org.springframework.http.converter.json.MappingJackson2HttpMessageConverter;
+import org.springframework.http.client.ClientHttpRequest;
+import org.springframework.http.client.ClientHttpResponse;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
 import org.springframework.stereotype.Service;
+import org.springframework.web.client.DefaultResponseErrorHandler;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResponseErrorHandler;
+import org.springframework.web.client.RestClientResponseException;
 import org.springframework.web.client.RestTemplate;
+import org.springframework.web.client.UnknownHttpStatusCodeException;
 
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.JsonMappingException;
 import com.fasterxml.jackson.databind.JsonNode;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.ulake.api.advice.CoreOverloadedException;
+import com.ulake.api.security.services.CoreResilienceService.Endpoint;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
 
 @Service
 public class ComlakeCoreService {
 	@Value("${app.coreBasePath}")
 	private String coreBasePath;
 
-	private RestTemplate restTemplate = new RestTemplate();
+	@Value("${app.coreBufferSize:65536}")
+	private int bufferSize;
 
-	private HttpMessageConverter<?> jacksonSupportsMoreTypes() {
-		MappingJackson2HttpMessageConverter converter = new MappingJackson2HttpMessageConverter();
-		converter.setSupportedMediaTypes(Arrays.asList(MediaType.parseMediaType("text/plain;charset=utf-8"),
-				MediaType.APPLICATION_OCTET_STREAM));
-		return converter;
-	}
+	@Autowired
+	private CoreAdmissionService admission;
 
-	// POST /file
-	public String postFile(byte[] data, Long size, String mimeType) throws IOException {
-		HttpHeaders headers = new HttpHeaders();
-		headers.setContentType(MediaType.APPLICATION_FORM_URLENCODED);
-		headers.set("Content-Length", size.toString());
-		headers.set("Content-Type", mimeType);
+	// Bulkhead and circuit breaker per core endpoint
+	@Autowired
+	private CoreResilienceService resilience;
+
+	@Autowired
+	private CoreHedgingService hedging;
+
+	@Autowired
+	@Qualifier("coreHedgeExecutor")
+	private ThreadPoolTaskExecutor hedgeExecutor;
+
+	// Pooled keep-alive client, see CoreClientConfiguration
+	@Autowired
+	@Qualifier("coreRestTemplate")
+	private RestTemplate restTemplate;
+
+	private ResponseErrorHandler errorHandler = new DefaultResponseErrorHandler();
+
+	@Value("${app.core.client.readTimeoutMs:60000}")
+	private long readTimeoutMs;
+
+	@Autowired
+	@Qualifier("coreAsyncHttpClient")
+	private HttpClient asyncClient;
+
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	@Value("${app.cache.dataset.maxEntries:100000}")
+	private long datasetCacheMaxEntries;
+
+	@Value("${app.cache.dataset.maxBytes:67108864}")
+	private long datasetCacheMaxBytes;
+
+	@Autowired
+	private MeterRegistry registry;
+
+	// /find results by datasetId. A datasetId names one immutable version of
+	// the metadata (updates get a new id), so entries never expire; they are
+	// only evicted for space.
+	private AsyncCache<String, Object[]> datasets;
+
+	@Value("${app.cache.listing.maxEntries:10000}")
+	private long listingCacheMaxEntries;
+
+	@Value("${app.cache.listing.maxBytes:67108864}")
+	private long listingCacheMaxBytes;
 
-		HttpEntity<byte[]> entity = new HttpEntity<>(data, headers);
+	// GET /dir listings by directory cid. The cid is a hash of the directory,
+	// so a listing never goes stale; entries are only evicted for space.
+	private AsyncCache<String, JsonNode> listings;
 
-		ResponseEntity<byte[]> response = restTemplate.postForEntity(coreBasePath + "file", entity, byte[].class);
+	@Value("${app.cache.topics.maxEntries:1000}")
+	private long topicCacheMaxEntries;
+
+	// Upper bound on staleness from writes that bypass this service
+	@Value("${app.cache.topics.ttlSeconds:300}")
+	private long topicCacheTtlSeconds;
+
+	// /find results by sorted topic set. Unlike the two caches above these go
+	// stale: a new dataset may match. Writes through this service drop every
+	// entry sharing a topic with the dataset written.
+	private AsyncCache<List<String>, TopicResult> topicResults;
+
+	private Timer topicResultAge;
+
+	@PostConstruct
+	public void init() {
+		// Caffeine bounds either weight or size; charging every entry at least
+		// its share of the byte budget enforces the entry limit as well
+		long minWeight = Math.max(1, datasetCacheMaxBytes / datasetCacheMaxEntries);
+		datasets = Caffeine.newBuilder()
+				.maximumWeight(datasetCacheMaxBytes)
+				.weigher((String id, Object[] found) -> (int) Math.min(Integer.MAX_VALUE,
+						Math.max(minWeight, jsonSize(found))))
+				.recordStats()
+				.buildAsync();
+		CaffeineCacheMetrics.monitor(registry, datasets, "datasets");
+
+		long minListingWeight = Math.max(1, listingCacheMaxBytes / listingCacheMaxEntries);
+		listings = Caffeine.newBuilder()
+				.maximumWeight(listingCacheMaxBytes)
+				.weigher((String cid, JsonNode listing) -> (int) Math.min(Integer.MAX_VALUE,
+						Math.max(minListingWeight, jsonSize(listing))))
+				.recordStats()
+				.buildAsync();
+		CaffeineCacheMetrics.monitor(registry, listings, "listings");
+
+		topicResults = Caffeine.newBuilder()
+				.maximumSize(topicCacheMaxEntries)
+				.expireAfterWrite(Duration.ofSeconds(topicCacheTtlSeconds))
+				.recordStats()
+				.buildAsync();
+		CaffeineCacheMetrics.monitor(registry, topicResults, "topics");
+		topicResultAge = Timer.builder("cache.topics.age").description("Age of topic search results when served")
+				.register(registry);
+	}
+
+	// POST /file
+	// Streams the data to core through a fixed size buffer, so memory use does
+	// not grow with the file size. A null or negative size sends it chunked.
+	public String postFile(InputStream data, Long size, String mimeType) throws IOException {
+		JsonNode rootCreate;
+		try (CoreAdmissionService.Permit permit = admission.acquire(size != null ? size : -1)) {
+			rootCreate = resilience.call(Endpoint.FILE,
+					() -> restTemplate.execute(coreBasePath + "file", HttpMethod.POST, request -> {
+						HttpHeaders headers = request.getHeaders();
+						headers.set(HttpHeaders.CONTENT_TYPE,
+								mimeType != null ? mimeType : MediaType.APPLICATION_OCTET_STREAM_VALUE);
+						if (size != null && size >= 0) {
+							headers.setContentLength(size);
+						}
+						transfer(data, request.getBody());
+					}, response -> MAPPER.readTree(response.getBody())));
+		}
 
 		// Get and save the response cid
-		ObjectMapper mapperCreate = new ObjectMapper();
-		JsonNode rootCreate = mapperCreate.readTree(response.getBody());
 		String cid = rootCreate.path("cid").asText();
 		return cid;
 	}
 
+	private void transfer(InputStream in, OutputStream out) throws IOException {
+		byte[] buffer = new byte[bufferSize];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+		}
+		out.flush();
+	}
+
 	// POST /dir
 	public String postFolder() throws IOException {
 		// Request to core POST /dir - Create an empty directory
-		ResponseEntity<String> response = restTemplate.postForEntity(coreBasePath + "/dir", null, String.class);
+		ResponseEntity<String> response = resilience.call(Endpoint.DIR,
+				() -> restTemplate.postForEntity(coreBasePath + "dir", null, String.class));
 
 		// Get and save the response cid
-		ObjectMapper mapperCreate = new ObjectMapper();
-		JsonNode rootCreate = mapperCreate.readTree(response.getBody());
+		JsonNode rootCreate = MAPPER.readTree(response.getBody());
 		String cid = rootCreate.path("cid").asText();
 		return cid;
 	}
 
 	// GET /file/{cid}
-	public String getFileData(String cid) {
-		String FILE_URL = coreBasePath + "file/" + cid;
-		restTemplate.getMessageConverters().add(jacksonSupportsMoreTypes());
-		ResponseEntity<String> response = restTemplate.getForEntity(FILE_URL, String.class);
-		return response.getBody();
+	// Opens the response without reading it, the caller streams the body and
+	// must close it. The transfer holds an admission permit until closed, so
+	// for as long as the client takes to read it.
+	public CoreContent openFile(String cid) throws IOException {
+		return openFile(cid, null);
+	}
+
+	// Same as above for part of the file. The range is passed on to core, which
+	// may answer 206 with just that window or 200 with the whole file.
+	// With hedging on, a slow open is raced by a second one; the response that
+	// loses is closed as soon as it arrives.
+	public CoreContent openFile(String cid, HttpRange range) throws IOException {
+		if (!hedging.isEnabled()) {
+			return openFileOnce(cid, range);
+		}
+		try {
+			return join(hedging.hedge("file", () -> CompletableFuture.supplyAsync(() -> {
+				try {
+					return openFileOnce(cid, range);
+				} catch (IOException e) {
+					throw new CompletionException(e);
+				}
+			}, hedgeExecutor), CoreContent::close));
+		} catch (TaskRejectedException e) {
+			return openFileOnce(cid, range);
+		}
+	}
+
+	private CoreContent openFileOnce(String cid, HttpRange range) throws IOException {
+		// The length is only known once core answers, so the permit starts at
+		// the unknown size charge and is resized to the real one
+		CoreAdmissionService.Permit permit = admission.acquire(-1);
+		try {
+			// The bulkhead covers getting the response; the transfer that
+			// follows is bounded by the admission permit
+			ClientHttpResponse response = resilience.call(Endpoint.FILE, () -> execute(cid, range));
+			permit.resize(response.getHeaders().getContentLength());
+			return new CoreContent(response, permit);
+		} catch (IOException | RuntimeException e) {
+			permit.close();
+			throw e;
+		}
+	}
+
+	private ClientHttpResponse execute(String cid, HttpRange range) throws IOException {
+		ClientHttpRequest request = restTemplate.getRequestFactory()
+				.createRequest(URI.create(coreBasePath + "file/" + cid), HttpMethod.GET);
+		if (range != null) {
+			request.getHeaders().setRange(List.of(range));
+		}
+		ClientHttpResponse response = request.execute();
+		try {
+			if (errorHandler.hasError(response)) {
+				errorHandler.handleError(response);
+			}
+			return response;
+		} catch (IOException | RuntimeException e) {
+			response.close();
+			throw e;
+		}
 	}
 
 	// POST /cp
@@ -80,27 +285,18 @@ public class ComlakeCoreService {
 		HttpHeaders headers = new HttpHeaders();
 		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
 
-		JSONObject dataset = new JSONObject();
-		dataset.put("src", src);
-		dataset.put("dest", dest);
-		dataset.put("path", path);
-
-		HttpEntity<String> requestCp = new HttpEntity<String>(dataset.toString(), headers);
-		ResponseEntity<String> responseCp = restTemplate.postForEntity(coreBasePath + "cp", requestCp, String.class);
+		HttpEntity<String> requestCp = new HttpEntity<String>(cpBody(src, dest, path), headers);
+		ResponseEntity<String> responseCp = resilience.call(Endpoint.DIR,
+				() -> restTemplate.postForEntity(coreBasePath + "cp", requestCp, String.class));
 
-		ObjectMapper mapperCp = new ObjectMapper();
-		JsonNode rootCp = mapperCp.readTree(responseCp.getBody());
+		JsonNode rootCp = MAPPER.readTree(responseCp.getBody());
 		String cid = rootCp.path("cid").asText();
 		return cid;
 	}
 
 	// GET /dir/{cid}
-	public JsonNode listContent(String cid) throws JsonMappingException, JsonProcessingException {
-		ResponseEntity<String> response = restTemplate.getForEntity(coreBasePath + "dir/" + cid, String.class);
-		ObjectMapper mapper = new ObjectMapper();
-		JsonNode root = mapper.readTree(response.getBody());
-
-		return root;
+	public JsonNode listContent(String cid) throws IOException {
+		return join(listContentAsync(cid));
 	}
 
 	// POST /dataset
@@ -109,23 +305,16 @@ public class ComlakeCoreService {
 		HttpHeaders headers = new HttpHeaders();
 		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
 
-		JSONObject dataset = new JSONObject();
-		dataset.put("file", cid);
-		dataset.put("description", name);
-		dataset.put("source", source);
-		dataset.put("mimeType", mimeType);
-		dataset.put("size", size);
-		dataset.put("topics", new JSONArray(topics));
-		dataset.put("language", language);
-
-		HttpEntity<String> requestDataset = new HttpEntity<String>(dataset.toString(), headers);
-		ResponseEntity<String> responseDataset = restTemplate.postForEntity(coreBasePath + "dataset", requestDataset,
-				String.class);
+		HttpEntity<String> requestDataset = new HttpEntity<String>(
+				datasetBody(cid, name, source, topics, size, mimeType, language), headers);
+		ResponseEntity<String> responseDataset = resilience.call(Endpoint.DATASET,
+				() -> restTemplate.postForEntity(coreBasePath + "dataset", requestDataset, String.class));
 
 		// Get and save the response datasetId
-		ObjectMapper mapperDataset = new ObjectMapper();
-		JsonNode rootDataset = mapperDataset.readTree(responseDataset.getBody());
+		JsonNode rootDataset = MAPPER.readTree(responseDataset.getBody());
 		String datasetId = rootDataset.path("id").asText();
+		invalidateTopics(topics);
+		warmDataset(datasetId);
 
 		return datasetId;
 	}
@@ -135,40 +324,357 @@ public class ComlakeCoreService {
 			throws JsonMappingException, JsonProcessingException {
 		HttpHeaders headers = new HttpHeaders();
 		headers.setAccept(Collections.singletonList(MediaType.APPLICATION_JSON));
-		
+
+		HttpEntity<String> requestDataset = new HttpEntity<String>(
+				updateBody(parent, description, source, topics, language), headers);
+		ResponseEntity<String> responseDataset = resilience.call(Endpoint.DATASET,
+				() -> restTemplate.postForEntity(coreBasePath + "update", requestDataset, String.class));
+
+		JsonNode rootDataset = MAPPER.readTree(responseDataset.getBody());
+		String datasetId = rootDataset.path("id").asText();
+		invalidateTopics(topics);
+		warmDataset(datasetId);
+
+		return datasetId;
+	}
+
+	// POST /find by datasetId, answered from the dataset cache when possible
+	public Object[] findByDatasetId(String datasetId) throws IOException {
+		return join(findByDatasetIdAsync(datasetId));
+	}
+
+	// POST /find by several datasetIds at once, only for those not cached
+	public Object[] findByDatasetIds(List<String> datasetIds) throws IOException {
+		return join(findByDatasetIdsAsync(datasetIds));
+	}
+
+	// POST /find by topics
+	public Object[] findByTopics(List<String> topics) throws IOException {
+		return join(findByTopicsAsync(topics));
+	}
+
+	// Request bodies, shared by the blocking and the async calls
+
+	private static String cpBody(String src, String dest, String path) {
+		JSONObject dataset = new JSONObject();
+		dataset.put("src", src);
+		dataset.put("dest", dest);
+		dataset.put("path", path);
+		return dataset.toString();
+	}
+
+	private static String datasetBody(String cid, String name, String source, List<String> topics, Long size,
+			String mimeType, String language) {
+		JSONObject dataset = new JSONObject();
+		dataset.put("file", cid);
+		dataset.put("description", name);
+		dataset.put("source", source);
+		dataset.put("mimeType", mimeType);
+		dataset.put("size", size);
+		dataset.put("topics", new JSONArray(topics));
+		dataset.put("language", language);
+		return dataset.toString();
+	}
+
+	private static String updateBody(String parent, String description, String source, List<String> topics,
+			String language) {
 		JSONObject dataset = new JSONObject();
 		dataset.put("parent", parent);
 		dataset.put("description", description);
 		dataset.put("source", source);
-		dataset.put("topics", new JSONArray(topics));	
-		dataset.put("language", language);		
+		dataset.put("topics", new JSONArray(topics));
+		dataset.put("language", language);
+		return dataset.toString();
+	}
 
-		HttpEntity<String> requestDataset = new HttpEntity<String>(dataset.toString(), headers);
-		ResponseEntity<String> responseDataset = restTemplate.postForEntity(coreBasePath + "update", requestDataset,
-				String.class);
+	private static String datasetIdQuery(String datasetId) {
+		return "[\"==\", [\".\", [\"$\"], \"id\"], " + datasetId + "]";
+	}
 
-		ObjectMapper mapperDataset = new ObjectMapper();
-		JsonNode rootDataset = mapperDataset.readTree(responseDataset.getBody());
-		String datasetId = rootDataset.path("id").asText();
+	// ["||", q1, q2, ...] matching any of the ids
+	private static String datasetIdsQuery(List<String> datasetIds) {
+		if (datasetIds.size() == 1) {
+			return datasetIdQuery(datasetIds.get(0));
+		}
+		return datasetIds.stream().map(ComlakeCoreService::datasetIdQuery)
+				.collect(Collectors.joining(", ", "[\"||\", ", "]"));
+	}
+
+	private static String topicsQuery(List<String> topics) {
+		return "[\"&&\", [\".\", [\"$\"], \"topics\"], "
+				+ "[" + topics.stream().collect(Collectors.joining("\", \"", "\"", "\"")) + "]" + "]";
+	}
+
+	// Async variants. They run on the JDK HttpClient and complete on its
+	// executor, so the calling thread is free to do other work and join later.
+	// A non-2xx answer fails the future with the same HttpStatusCodeException
+	// the blocking call would throw; use join(future) to unwrap it.
+
+	// POST /file
+	// Waits for an admission permit on the calling thread before sending
+	public CompletableFuture<String> postFileAsync(InputStream data, Long size, String mimeType) {
+		CoreAdmissionService.Permit permit;
+		try {
+			permit = admission.acquire(size != null ? size : -1);
+		} catch (RuntimeException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		try {
+			BodyPublisher body = BodyPublishers.ofInputStream(() -> data);
+			if (size != null && size >= 0) {
+				body = BodyPublishers.fromPublisher(body, size);
+			}
+			HttpRequest request = HttpRequest.newBuilder(URI.create(coreBasePath + "file"))
+					.header(HttpHeaders.CONTENT_TYPE,
+							mimeType != null ? mimeType : MediaType.APPLICATION_OCTET_STREAM_VALUE)
+					.POST(body)
+					.build();
+			return sendAsync(Endpoint.FILE, request).thenApply(response -> readTree(response).path("cid").asText())
+					.whenComplete((cid, e) -> permit.close());
+		} catch (RuntimeException e) {
+			permit.close();
+			return CompletableFuture.failedFuture(e);
+		}
+	}
+
+	// POST /dir
+	public CompletableFuture<String> postFolderAsync() {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(coreBasePath + "dir"))
+				.timeout(Duration.ofMillis(readTimeoutMs))
+				.POST(BodyPublishers.noBody())
+				.build();
+		return sendAsync(Endpoint.DIR, request).thenApply(response -> readTree(response).path("cid").asText());
+	}
+
+	// POST /cp
+	public CompletableFuture<String> cpToDirAsync(String src, String dest, String path) {
+		return postJsonAsync(Endpoint.DIR, "cp", cpBody(src, dest, path))
+				.thenApply(response -> readTree(response).path("cid").asText());
+	}
+
+	// GET /dir/{cid}, answered from the listing cache when possible, else
+	// hedged. Concurrent misses for one cid share a single request.
+	public CompletableFuture<JsonNode> listContentAsync(String cid) {
+		return listings.get(cid, (key, executor) -> {
+			HttpRequest request = HttpRequest.newBuilder(URI.create(coreBasePath + "dir/" + key))
+					.timeout(Duration.ofMillis(readTimeoutMs))
+					.GET()
+					.build();
+			return hedging.hedge("dir",
+					() -> sendAsync(Endpoint.DIR, request).thenApply(ComlakeCoreService::readTree), null);
+		});
+	}
+
+	// POST /dataset
+	public CompletableFuture<String> addDatasetAsync(String cid, String name, String source, List<String> topics,
+			Long size, String mimeType, String language) {
+		return postJsonAsync(Endpoint.DATASET, "dataset", datasetBody(cid, name, source, topics, size, mimeType, language))
+				.thenApply(response -> {
+					invalidateTopics(topics);
+					return warmDataset(readTree(response).path("id").asText());
+				});
+	}
 
+	// POST /update
+	public CompletableFuture<String> updateDatasetAsync(String parent, String description, String source,
+			List<String> topics, String language) {
+		return postJsonAsync(Endpoint.DATASET, "update", updateBody(parent, description, source, topics, language))
+				.thenApply(response -> {
+					invalidateTopics(topics);
+					return warmDataset(readTree(response).path("id").asText());
+				});
+	}
+
+	// POST /find by datasetId, answered from the dataset cache when possible.
+	// Concurrent misses for one id share a single (hedged) request.
+	public CompletableFuture<Object[]> findByDatasetIdAsync(String datasetId) {
+		return datasets.get(datasetId, (id, executor) -> hedging.hedge("find",
+				() -> postJsonAsync(Endpoint.FIND, "find", datasetIdQuery(id)).thenApply(ComlakeCoreService::readArray),
+				null).thenApply(ComlakeCoreService::uncachedIfEmpty))
+				.thenApply(found -> found != null ? found : new Object[0]);
+	}
+
+	// POST /find by several datasetIds at once. Cached ids are answered locally
+	// and the rest are asked for in one query, then cached one by one.
+	public CompletableFuture<Object[]> findByDatasetIdsAsync(List<String> datasetIds) {
+		List<CompletableFuture<Object[]>> parts = new ArrayList<>();
+		List<String> misses = new ArrayList<>();
+		for (String datasetId : datasetIds) {
+			CompletableFuture<Object[]> cached = datasets.getIfPresent(datasetId);
+			if (cached != null) {
+				parts.add(cached);
+			} else {
+				misses.add(datasetId);
+			}
+		}
+		if (!misses.isEmpty()) {
+			parts.add(postJsonAsync(Endpoint.FIND, "find", datasetIdsQuery(misses))
+					.thenApply(ComlakeCoreService::readArray)
+					.thenApply(found -> {
+						for (Object dataset : found) {
+							if (dataset instanceof Map) {
+								datasets.put(String.valueOf(((Map<?, ?>) dataset).get("id")),
+										CompletableFuture.completedFuture(new Object[] { dataset }));
+							}
+						}
+						return found;
+					})
+					.handle(ComlakeCoreService::cachedOnlyIfOverloaded));
+		}
+		return CompletableFuture.allOf(parts.toArray(new CompletableFuture<?>[0]))
+				.thenApply(done -> parts.stream()
+						.flatMap(part -> part.join() != null ? Arrays.stream(part.join()) : Stream.empty())
+						.toArray());
+	}
+
+	// POST /find by topics, answered from the topic cache when possible, else
+	// hedged. The order and repetition of topics do not matter to core.
+	public CompletableFuture<Object[]> findByTopicsAsync(List<String> topics) {
+		List<String> key = topics.stream().distinct().sorted().collect(Collectors.toList());
+		return topicResults.get(key, (query, executor) -> hedging.hedge("topics",
+				() -> postJsonAsync(Endpoint.FIND, "find", topicsQuery(query)).thenApply(ComlakeCoreService::readArray),
+				null).thenApply(TopicResult::new))
+				.thenApply(result -> {
+					topicResultAge.record(System.currentTimeMillis() - result.loadedAt, TimeUnit.MILLISECONDS);
+					return result.found;
+				});
+	}
+
+	/**
+	 * Load the listing of a directory just built into the cache in the
+	 * background; folders are usually browsed right after being changed. Call
+	 * it with the final cid of a chain of copies, not every step.
+	 */
+	public String warmListing(String cid) {
+		listContentAsync(cid);
+		return cid;
+	}
+
+	// Searches for any topic of a dataset just written may now match it.
+	// Loads still in flight are dropped too, so they cannot put back an old
+	// answer.
+	private void invalidateTopics(List<String> topics) {
+		if (topics == null || topics.isEmpty()) {
+			return;
+		}
+		Set<String> written = new HashSet<>(topics);
+		topicResults.asMap().keySet().removeIf(query -> query.stream().anyMatch(written::contains));
+	}
+
+	// Load a dataset just written into the cache in the background, so the next
+	// read of it is a hit or joins the load already in flight
+	private String warmDataset(String datasetId) {
+		findByDatasetIdAsync(datasetId);
 		return datasetId;
 	}
 
-	// POST /find by datasetId
-	public Object[] findByDatasetId(String datasetId) {
-		String astQuery = "[\"==\", [\".\", [\"$\"], \"id\"], " + datasetId + "]";
-		HttpEntity<String> request = new HttpEntity<String>(astQuery);
-		ResponseEntity<Object[]> response = restTemplate.postForEntity(coreBasePath + "find", request, Object[].class);
-		return response.getBody();
+	/**
+	 * Wait for an async core call and rethrow its failure the way the blocking
+	 * call would.
+	 */
+	public static <T> T join(CompletableFuture<T> future) throws IOException {
+		try {
+			return future.join();
+		} catch (CompletionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw e;
+		}
 	}
 
-	// POST /find by topics
-	public Object[] findByTopics(List<String> topics) {
-		String astQuery = "[\"&&\", [\".\", [\"$\"], \"topics\"], "
-				+ "[" + topics.stream().collect(Collectors.joining("\", \"", "\"", "\"")) + "]" + "]";
-		HttpEntity<String> request = new HttpEntity<String>(astQuery);
-		ResponseEntity<Object[]> response = restTemplate.postForEntity(coreBasePath + "find", request, Object[].class);
-		System.out.print(response.getBody());
-		return response.getBody();
+	// Same headers as the blocking calls: the body goes out as text, JSON is
+	// asked for in return
+	private CompletableFuture<String> postJsonAsync(Endpoint endpoint, String path, String body) {
+		HttpRequest request = HttpRequest.newBuilder(URI.create(coreBasePath + path))
+				.timeout(Duration.ofMillis(readTimeoutMs))
+				.header(HttpHeaders.CONTENT_TYPE, "text/plain;charset=UTF-8")
+				.header(HttpHeaders.ACCEPT, MediaType.APPLICATION_JSON_VALUE)
+				.POST(BodyPublishers.ofString(body, StandardCharsets.UTF_8))
+				.build();
+		return sendAsync(endpoint, request);
+	}
+
+	private CompletableFuture<String> sendAsync(Endpoint endpoint, HttpRequest request) {
+		return resilience.callAsync(endpoint, () -> asyncClient
+				.sendAsync(request, BodyHandlers.ofString(StandardCharsets.UTF_8)).thenApply(response -> {
+					if (response.statusCode() >= 400) {
+						throw statusException(response);
+					}
+					return response.body();
+				}));
+	}
+
+	private static RestClientResponseException statusException(HttpResponse<String> response) {
+		HttpHeaders headers = new HttpHeaders();
+		response.headers().map().forEach(headers::addAll);
+		byte[] body = response.body() != null ? response.body().getBytes(StandardCharsets.UTF_8) : null;
+		HttpStatus status = HttpStatus.resolve(response.statusCode());
+		if (status == null) {
+			return new UnknownHttpStatusCodeException(response.statusCode(), "", headers, body,
+					StandardCharsets.UTF_8);
+		}
+		if (status.is4xxClientError()) {
+			return HttpClientErrorException.create(status, status.getReasonPhrase(), headers, body,
+					StandardCharsets.UTF_8);
+		}
+		return HttpServerErrorException.create(status, status.getReasonPhrase(), headers, body,
+				StandardCharsets.UTF_8);
+	}
+
+	private static JsonNode readTree(String body) {
+		try {
+			return MAPPER.readTree(body);
+		} catch (JsonProcessingException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	// While core is shedding load, a list answers with the datasets already
+	// cached and leaves the others out rather than failing as a whole
+	private static Object[] cachedOnlyIfOverloaded(Object[] found, Throwable e) {
+		if (e == null) {
+			return found;
+		}
+		Throwable cause = e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+		if (cause instanceof CoreOverloadedException) {
+			return new Object[0];
+		}
+		throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+	}
+
+	// A dataset not found (or not indexed yet) must not stick in the cache; a
+	// null value is dropped instead of stored
+	private static Object[] uncachedIfEmpty(Object[] found) {
+		return found == null || found.length == 0 ? null : found;
+	}
+
+	private static long jsonSize(Object value) {
+		try {
+			return MAPPER.writeValueAsBytes(value).length;
+		} catch (JsonProcessingException e) {
+			return 1024;
+		}
+	}
+
+	private static Object[] readArray(String body) {
+		try {
+			return MAPPER.readValue(body, Object[].class);
+		} catch (JsonProcessingException e) {
+			throw new CompletionException(e);
+		}
+	}
+
+	private static class TopicResult {
+		private final Object[] found;
+		private final long loadedAt = System.currentTimeMillis();
+
+		TopicResult(Object[] found) {
+			this.found = found;
+		}
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,75 @@
+package com.ulake.api.security.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Optional;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.stereotype.Service;
+
+import com.ulake.api.models.ContentDigest;
+import com.ulake.api.repository.ContentDigestRepository;
+
+/**
+ * Index from the SHA-256 of uploaded content to the cid core stored it under,
+ * so identical uploads can reuse the cid instead of transferring again.
+ */
+@Service
+public class ContentDigestService {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ContentDigestService.class);
+
+	@Value("${app.coreBufferSize:65536}")
+	private int bufferSize;
+
+	@Autowired
+	private ContentDigestRepository contentDigestRepository;
+
+	public MessageDigest newDigest() {
+		try {
+			return MessageDigest.getInstance("SHA-256");
+		} catch (NoSuchAlgorithmException e) {
+			// Every JVM is required to ship SHA-256
+			throw new IllegalStateException(e);
+		}
+	}
+
+	public String digest(InputStream in) throws IOException {
+		MessageDigest md = newDigest();
+		byte[] buffer = new byte[bufferSize];
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			md.update(buffer, 0, read);
+		}
+		return toHex(md.digest());
+	}
+
+	public Optional<String> findCid(String digest, long size) {
+		return contentDigestRepository.findByDigestAndSize(digest, size).map(ContentDigest::getCid);
+	}
+
+	public void record(String digest, String cid, long size) {
+		if (contentDigestRepository.existsById(digest)) {
+			return;
+		}
+		try {
+			contentDigestRepository.save(new ContentDigest(digest, cid, size));
+		} catch (DataIntegrityViolationException e) {
+			// A concurrent upload of the same content got there first
+			LOGGER.debug("Digest {} already indexed", digest);
+		}
+	}
+
+	public static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder(bytes.length * 2);
+		for (byte b : bytes) {
+			hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+		}
+		return hex.toString();
+	}
+}
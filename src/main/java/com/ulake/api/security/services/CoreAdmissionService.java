@@ -0,0 +1,169 @@
+package com.ulake.api.security.services;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongSupplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.ulake.api.advice.CoreOverloadedException;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admission control for data moving to or from core. A transfer must hold a
+ * permit for its size before it starts; permits are limited by a total byte
+ * budget and a concurrency cap. Callers wait up to the configured timeout for
+ * room, then fail with {@link CoreOverloadedException} (503 + Retry-After).
+ * A permit is held until the transfer ends, so a download streamed to a slow
+ * client keeps its share of the budget and of the cap for as long as that
+ * client takes to read it.
+ */
+@Service
+public class CoreAdmissionService {
+	@Value("${app.core.admission.maxInFlightBytes:536870912}")
+	private long maxInFlightBytes;
+
+	@Value("${app.core.admission.maxConcurrent:32}")
+	private int maxConcurrent;
+
+	@Value("${app.core.admission.acquireTimeoutMs:2000}")
+	private long acquireTimeoutMs;
+
+	// Charged for transfers whose length is not known up front. Downloads are
+	// charged this until core's Content-Length arrives, see Permit.resize.
+	@Value("${app.core.admission.unknownSizeBytes:8388608}")
+	private long unknownSizeBytes;
+
+	@Value("${app.core.admission.retryAfterSeconds:5}")
+	private long retryAfterSeconds;
+
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition released = lock.newCondition();
+
+	private long admittedBytes;
+	private int admittedCount;
+	private long queuedBytes;
+	private int queuedCount;
+
+	private final Counter rejected;
+
+	public CoreAdmissionService(MeterRegistry registry) {
+		Gauge.builder("core.admission.admitted.bytes", this, admission -> admission.read(() -> admittedBytes))
+				.baseUnit("bytes").register(registry);
+		Gauge.builder("core.admission.admitted.transfers", this, admission -> admission.read(() -> admittedCount))
+				.register(registry);
+		Gauge.builder("core.admission.queued.bytes", this, admission -> admission.read(() -> queuedBytes))
+				.baseUnit("bytes").register(registry);
+		Gauge.builder("core.admission.queued.transfers", this, admission -> admission.read(() -> queuedCount))
+				.register(registry);
+		rejected = Counter.builder("core.admission.rejected").register(registry);
+	}
+
+	/**
+	 * Wait for room to move the given number of bytes. A negative size means the
+	 * length is unknown. Transfers larger than the whole budget are admitted
+	 * alone.
+	 */
+	public Permit acquire(long size) {
+		long bytes = Math.min(size < 0 ? unknownSizeBytes : size, maxInFlightBytes);
+		long remaining = TimeUnit.MILLISECONDS.toNanos(acquireTimeoutMs);
+		lock.lock();
+		try {
+			queuedBytes += bytes;
+			queuedCount++;
+			try {
+				while (admittedCount >= maxConcurrent || admittedBytes + bytes > maxInFlightBytes) {
+					if (remaining <= 0) {
+						rejected.increment();
+						throw new CoreOverloadedException("Too much data in flight to core, try again later",
+								retryAfterSeconds);
+					}
+					remaining = released.awaitNanos(remaining);
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new CoreOverloadedException("Interrupted while waiting for core capacity", retryAfterSeconds);
+			} finally {
+				queuedBytes -= bytes;
+				queuedCount--;
+			}
+			admittedBytes += bytes;
+			admittedCount++;
+			return new Permit(bytes);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void resize(long from, long to) {
+		lock.lock();
+		try {
+			admittedBytes += to - from;
+			if (to < from) {
+				released.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void release(long bytes) {
+		lock.lock();
+		try {
+			admittedBytes -= bytes;
+			admittedCount--;
+			released.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private double read(LongSupplier value) {
+		lock.lock();
+		try {
+			return value.getAsLong();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Held for the duration of one transfer, released on close.
+	 */
+	public class Permit implements AutoCloseable {
+		private long bytes;
+		private boolean closed;
+
+		private Permit(long bytes) {
+			this.bytes = bytes;
+		}
+
+		/**
+		 * Charge the real size once it is known, e.g. from a response's
+		 * Content-Length. Does not wait: the transfer is already under way, so a
+		 * larger size may take the budget past its limit until it is released,
+		 * and later callers wait for that. A negative size is ignored.
+		 */
+		public synchronized void resize(long size) {
+			if (closed || size < 0) {
+				return;
+			}
+			long resized = Math.min(size, maxInFlightBytes);
+			CoreAdmissionService.this.resize(bytes, resized);
+			bytes = resized;
+		}
+
+		@Override
+		public synchronized void close() {
+			if (!closed) {
+				closed = true;
+				release(bytes);
+			}
+		}
+	}
+}
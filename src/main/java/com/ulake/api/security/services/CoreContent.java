@@ -0,0 +1,85 @@
+package com.ulake.api.security.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import org.apache.http.conn.EofSensorInputStream;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.client.ClientHttpResponse;
+
+/**
+ * An open response from core's GET /file/{cid}. The body has not been read
+ * yet; it is meant to be streamed to the client and the response closed
+ * afterwards.
+ */
+public class CoreContent implements Closeable {
+	private final ClientHttpResponse response;
+	private final CoreAdmissionService.Permit permit;
+
+	CoreContent(ClientHttpResponse response, CoreAdmissionService.Permit permit) {
+		this.response = response;
+		this.permit = permit;
+	}
+
+	public HttpStatus getStatus() throws IOException {
+		return response.getStatusCode();
+	}
+
+	public HttpHeaders getHeaders() {
+		return response.getHeaders();
+	}
+
+	// -1 when core did not send a length
+	public long getContentLength() {
+		return response.getHeaders().getContentLength();
+	}
+
+	public MediaType getContentType() {
+		MediaType contentType = response.getHeaders().getContentType();
+		return contentType != null ? contentType : MediaType.APPLICATION_OCTET_STREAM;
+	}
+
+	public InputStream getBody() throws IOException {
+		return response.getBody();
+	}
+
+	// Copy the body through one fixed size buffer and return the byte count
+	public long transferTo(OutputStream out, int bufferSize) throws IOException {
+		InputStream in = response.getBody();
+		byte[] buffer = new byte[bufferSize];
+		long total = 0;
+		int read;
+		while ((read = in.read(buffer)) != -1) {
+			out.write(buffer, 0, read);
+			total += read;
+		}
+		out.flush();
+		return total;
+	}
+
+	// Closing a pooled response normally drains the rest of the body so the
+	// connection can be reused. A client that went away halfway through a large
+	// file would then pull the remainder from core for nothing, so drop the
+	// connection instead. Once the body was read to the end this is a no-op.
+	@Override
+	public void close() {
+		try {
+			InputStream body = response.getBody();
+			if (body instanceof EofSensorInputStream) {
+				((EofSensorInputStream) body).abortConnection();
+			}
+		} catch (IOException e) {
+			// Closed below either way
+		} finally {
+			try {
+				response.close();
+			} finally {
+				permit.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,163 @@
+package com.ulake.api.security.services;
+
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.distribution.ValueAtPercentile;
+
+/**
+ * Hedged requests for idempotent core reads. When an attempt has not answered
+ * by the time most calls of its kind have (a percentile of their recent
+ * latency), a second identical attempt is sent and whichever answers first is
+ * used. Hedges are paid for from a token budget that each call tops up by a
+ * fraction of a hedge, which caps the extra load on core at a fixed
+ * percentage. The losing attempt is never cancelled: the JDK 11 HttpClient
+ * cannot abort an exchange, so it runs to completion and holds its bulkhead
+ * slot until then, which the budget already pays for. A losing openFile is
+ * closed when it arrives. Off unless app.core.hedge.enabled is set.
+ */
+@Service
+public class CoreHedgingService {
+	// One hedge, in budget units
+	private static final long HEDGE_COST = 1000;
+
+	@Value("${app.core.hedge.enabled:false}")
+	private boolean enabled;
+
+	// Latency percentile after which a hedge is sent
+	@Value("${app.core.hedge.percentile:0.95}")
+	private double percentile;
+
+	// Never hedge sooner than this, however fast core usually is
+	@Value("${app.core.hedge.minDelayMs:20}")
+	private long minDelayMs;
+
+	// Calls of a kind seen before its percentile is trusted
+	@Value("${app.core.hedge.minSamples:100}")
+	private long minSamples;
+
+	// Extra load allowed, as a percentage of calls
+	@Value("${app.core.hedge.budgetPercent:5}")
+	private long budgetPercent;
+
+	// Hedges that can be saved up for a burst of slow calls
+	@Value("${app.core.hedge.maxBurst:10}")
+	private long maxBurst;
+
+	private final MeterRegistry registry;
+
+	private final Map<String, Timer> latencies = new ConcurrentHashMap<>();
+
+	private final AtomicLong budget = new AtomicLong();
+
+	private final Counter sent;
+	private final Counter won;
+	private final Counter denied;
+
+	public CoreHedgingService(MeterRegistry registry) {
+		this.registry = registry;
+		sent = Counter.builder("core.hedge.sent").register(registry);
+		won = Counter.builder("core.hedge.won").register(registry);
+		denied = Counter.builder("core.hedge.denied").description("Hedges skipped for lack of budget")
+				.register(registry);
+	}
+
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Run one core read, hedged if enabled. Each call to the supplier must start
+	 * a fresh attempt. An attempt that answers after the race is decided has its
+	 * value passed to discard (which may be null) so it can be released.
+	 */
+	public <T> CompletableFuture<T> hedge(String call, Supplier<CompletableFuture<T>> attempt, Consumer<T> discard) {
+		if (!enabled) {
+			return attempt.get();
+		}
+		Timer latency = latencies.computeIfAbsent(call, name -> Timer.builder("core.hedge.latency").tag("call", name)
+				.publishPercentiles(percentile).register(registry));
+		budget.accumulateAndGet(budgetPercent * HEDGE_COST / 100, (left, earned) -> Math.min(left + earned,
+				maxBurst * HEDGE_COST));
+
+		Race<T> race = new Race<>(latency, discard);
+		race.start(attempt, false);
+		long delay = delayMillis(latency);
+		if (delay >= 0) {
+			CompletableFuture.delayedExecutor(delay, TimeUnit.MILLISECONDS).execute(() -> {
+				if (race.result.isDone()) {
+					return;
+				}
+				if (budget.getAndUpdate(left -> left >= HEDGE_COST ? left - HEDGE_COST : left) < HEDGE_COST) {
+					denied.increment();
+					return;
+				}
+				sent.increment();
+				race.start(attempt, true);
+			});
+		}
+		return race.result;
+	}
+
+	// -1 until enough calls were seen to know what slow means
+	private long delayMillis(Timer latency) {
+		if (latency.count() < minSamples) {
+			return -1;
+		}
+		for (ValueAtPercentile value : latency.takeSnapshot().percentileValues()) {
+			return Math.max(minDelayMs, (long) value.value(TimeUnit.MILLISECONDS));
+		}
+		return -1;
+	}
+
+	private class Race<T> {
+		private final CompletableFuture<T> result = new CompletableFuture<>();
+		private final AtomicInteger running = new AtomicInteger();
+		private final Timer latency;
+		private final Consumer<T> discard;
+
+		Race(Timer latency, Consumer<T> discard) {
+			this.latency = latency;
+			this.discard = discard;
+		}
+
+		void start(Supplier<CompletableFuture<T>> attempt, boolean hedged) {
+			running.incrementAndGet();
+			long start = System.nanoTime();
+			CompletableFuture<T> future;
+			try {
+				future = attempt.get();
+			} catch (RuntimeException e) {
+				future = CompletableFuture.failedFuture(e);
+			}
+			future.whenComplete((value, e) -> {
+				int left = running.decrementAndGet();
+				if (e == null) {
+					latency.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+					if (result.complete(value)) {
+						if (hedged) {
+							won.increment();
+						}
+					} else if (discard != null) {
+						discard.accept(value);
+					}
+				} else if (left == 0) {
+					// Only fail once no attempt can still answer
+					result.completeExceptionally(e);
+				}
+			});
+		}
+	}
+}
@@ -0,0 +1,210 @@
+package com.ulake.api.security.services;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.web.client.HttpClientErrorException;
+
+import com.ulake.api.advice.ArchiveLimitException;
+import com.ulake.api.advice.CoreOverloadedException;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Isolates the core endpoints from each other and from the rest of the API.
+ * Every call to core goes through the bulkhead of its endpoint, which caps how
+ * many request threads can be stuck waiting on it, and a circuit breaker,
+ * which fails calls fast while core keeps failing or stalling. Both reject
+ * with {@link CoreOverloadedException} (503 + Retry-After), so a slow core
+ * leaves threads free for the endpoints that only need the database.
+ */
+@Service
+public class CoreResilienceService {
+	public enum Endpoint {
+		FILE, DIR, DATASET, FIND
+	}
+
+	@Value("${app.core.bulkhead.file.maxConcurrent:32}")
+	private int fileMaxConcurrent;
+
+	@Value("${app.core.bulkhead.dir.maxConcurrent:32}")
+	private int dirMaxConcurrent;
+
+	@Value("${app.core.bulkhead.dataset.maxConcurrent:32}")
+	private int datasetMaxConcurrent;
+
+	@Value("${app.core.bulkhead.find.maxConcurrent:64}")
+	private int findMaxConcurrent;
+
+	@Value("${app.core.bulkhead.maxWaitMs:100}")
+	private long bulkheadMaxWaitMs;
+
+	// Percentage of failed calls in the window that opens the breaker
+	@Value("${app.core.breaker.failureRateThreshold:50}")
+	private float failureRateThreshold;
+
+	// Metadata calls slower than this count as slow; file transfers never do
+	@Value("${app.core.breaker.slowCallMs:5000}")
+	private long slowCallMs;
+
+	@Value("${app.core.breaker.slowCallRateThreshold:80}")
+	private float slowCallRateThreshold;
+
+	@Value("${app.core.breaker.windowSize:50}")
+	private int windowSize;
+
+	@Value("${app.core.breaker.minimumCalls:20}")
+	private int minimumCalls;
+
+	@Value("${app.core.breaker.openSeconds:10}")
+	private long openSeconds;
+
+	@Value("${app.core.admission.retryAfterSeconds:5}")
+	private long retryAfterSeconds;
+
+	@Autowired
+	private MeterRegistry registry;
+
+	private final Map<Endpoint, Bulkhead> bulkheads = new EnumMap<>(Endpoint.class);
+	private final Map<Endpoint, CircuitBreaker> breakers = new EnumMap<>(Endpoint.class);
+
+	@PostConstruct
+	public void init() {
+		BulkheadRegistry bulkheadRegistry = BulkheadRegistry.ofDefaults();
+		CircuitBreakerRegistry breakerRegistry = CircuitBreakerRegistry.ofDefaults();
+		Map<Endpoint, Integer> limits = Map.of(Endpoint.FILE, fileMaxConcurrent, Endpoint.DIR, dirMaxConcurrent,
+				Endpoint.DATASET, datasetMaxConcurrent, Endpoint.FIND, findMaxConcurrent);
+		for (Endpoint endpoint : Endpoint.values()) {
+			String name = "core-" + endpoint.name().toLowerCase();
+			bulkheads.put(endpoint, bulkheadRegistry.bulkhead(name, BulkheadConfig.custom()
+					.maxConcurrentCalls(limits.get(endpoint))
+					.maxWaitDuration(Duration.ofMillis(bulkheadMaxWaitMs))
+					.build()));
+			breakers.put(endpoint, breakerRegistry.circuitBreaker(name, breakerConfig(endpoint)));
+		}
+		TaggedBulkheadMetrics.ofBulkheadRegistry(bulkheadRegistry).bindTo(registry);
+		TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(breakerRegistry).bindTo(registry);
+	}
+
+	private CircuitBreakerConfig breakerConfig(Endpoint endpoint) {
+		CircuitBreakerConfig.Builder config = CircuitBreakerConfig.custom()
+				.slidingWindowSize(windowSize)
+				.minimumNumberOfCalls(minimumCalls)
+				.failureRateThreshold(failureRateThreshold)
+				.waitDurationInOpenState(Duration.ofSeconds(openSeconds))
+				.automaticTransitionFromOpenToHalfOpenEnabled(true)
+				// A 4xx means core is up and answering; our own rejections, and an
+				// upload cut short by an archive limit, say nothing about core either
+				.ignoreExceptions(HttpClientErrorException.class, CoreOverloadedException.class,
+						ArchiveLimitException.class);
+		if (endpoint == Endpoint.FILE) {
+			// A large upload is slow by nature
+			config.slowCallRateThreshold(100).slowCallDurationThreshold(Duration.ofDays(1));
+		} else {
+			config.slowCallRateThreshold(slowCallRateThreshold).slowCallDurationThreshold(Duration.ofMillis(slowCallMs));
+		}
+		return config.build();
+	}
+
+	@FunctionalInterface
+	public interface CoreCall<T, E extends Exception> {
+		T call() throws E;
+	}
+
+	/**
+	 * Run a blocking core call inside the endpoint's bulkhead and breaker.
+	 */
+	public <T, E extends Exception> T call(Endpoint endpoint, CoreCall<T, E> call) throws E {
+		Pass pass = enter(endpoint);
+		try {
+			T result = call.call();
+			pass.succeeded();
+			return result;
+		} catch (Exception e) {
+			pass.failed(e);
+			throw e;
+		}
+	}
+
+	/**
+	 * Start an async core call inside the endpoint's bulkhead and breaker. The
+	 * bulkhead is held until the future completes; a rejection fails the future.
+	 */
+	public <T> CompletableFuture<T> callAsync(Endpoint endpoint, Supplier<CompletableFuture<T>> call) {
+		Pass pass;
+		try {
+			pass = enter(endpoint);
+		} catch (CoreOverloadedException e) {
+			return CompletableFuture.failedFuture(e);
+		}
+		CompletableFuture<T> future;
+		try {
+			future = call.get();
+		} catch (RuntimeException e) {
+			pass.failed(e);
+			return CompletableFuture.failedFuture(e);
+		}
+		return future.whenComplete((result, e) -> {
+			if (e == null) {
+				pass.succeeded();
+			} else {
+				pass.failed(e instanceof CompletionException && e.getCause() != null ? e.getCause() : e);
+			}
+		});
+	}
+
+	private Pass enter(Endpoint endpoint) {
+		CircuitBreaker breaker = breakers.get(endpoint);
+		if (!breaker.tryAcquirePermission()) {
+			throw new CoreOverloadedException("Core " + endpoint.name().toLowerCase()
+					+ " calls keep failing, try again later", openSeconds);
+		}
+		Bulkhead bulkhead = bulkheads.get(endpoint);
+		if (!bulkhead.tryAcquirePermission()) {
+			breaker.releasePermission();
+			throw new CoreOverloadedException("Too many core " + endpoint.name().toLowerCase()
+					+ " calls in flight, try again later", retryAfterSeconds);
+		}
+		return new Pass(breaker, bulkhead);
+	}
+
+	// Permission held by one call, given back with its outcome
+	private static class Pass {
+		private final CircuitBreaker breaker;
+		private final Bulkhead bulkhead;
+		private final long start = System.nanoTime();
+
+		Pass(CircuitBreaker breaker, Bulkhead bulkhead) {
+			this.breaker = breaker;
+			this.bulkhead = bulkhead;
+		}
+
+		void succeeded() {
+			bulkhead.onComplete();
+			breaker.onSuccess(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+		}
+
+		void failed(Throwable e) {
+			bulkhead.onComplete();
+			breaker.onError(System.nanoTime() - start, TimeUnit.NANOSECONDS, e);
+		}
+	}
+}
@@ -0,0 +1,106 @@
+package com.ulake.api.security.services;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.ulake.api.models.File;
+import com.ulake.api.models.Folder;
+
+/**
+ * Merges dataset metadata from core (language, source, topics) into lists of
+ * files and folders. The datasets of a whole list are fetched with one core
+ * /find per batch of ids instead of one call per entity.
+ */
+@Service
+public class DatasetMetadataService {
+	// Value of the include request parameter asking for metadata
+	public static final String INCLUDE_METADATA = "metadata";
+
+	private static final TypeReference<Map<String, Object>> JSON_OBJECT = new TypeReference<Map<String, Object>>() {
+	};
+
+	// Ids ORed together in one /find query
+	@Value("${app.core.findBatchSize:100}")
+	private int findBatchSize;
+
+	@Autowired
+	private ComlakeCoreService coreService;
+
+	@Autowired
+	private ObjectMapper objectMapper;
+
+	public static boolean wantsMetadata(String include) {
+		return include != null && List.of(include.split(",")).contains(INCLUDE_METADATA);
+	}
+
+	/**
+	 * The entities as JSON objects, each with the language, source and topics of
+	 * its dataset. Entities whose dataset core does not know are left as they
+	 * are.
+	 */
+	public List<Map<String, Object>> withMetadata(List<?> entities) throws IOException {
+		Set<String> datasetIds = new LinkedHashSet<>();
+		for (Object entity : entities) {
+			String datasetId = datasetIdOf(entity);
+			if (datasetId != null) {
+				datasetIds.add(datasetId);
+			}
+		}
+		Map<String, Map<?, ?>> datasets = findDatasets(new ArrayList<>(datasetIds));
+
+		List<Map<String, Object>> enriched = new ArrayList<>(entities.size());
+		for (Object entity : entities) {
+			Map<String, Object> json = objectMapper.convertValue(entity, JSON_OBJECT);
+			Map<?, ?> dataset = datasets.get(datasetIdOf(entity));
+			if (dataset != null) {
+				json.put("language", dataset.get("language"));
+				json.put("source", dataset.get("source"));
+				json.put("topics", dataset.get("topics"));
+			}
+			enriched.add(json);
+		}
+		return enriched;
+	}
+
+	// Datasets by id; batches are sent to core concurrently
+	private Map<String, Map<?, ?>> findDatasets(List<String> datasetIds) throws IOException {
+		List<CompletableFuture<Object[]>> batches = new ArrayList<>();
+		for (int from = 0; from < datasetIds.size(); from += findBatchSize) {
+			List<String> batch = datasetIds.subList(from, Math.min(from + findBatchSize, datasetIds.size()));
+			batches.add(coreService.findByDatasetIdsAsync(batch));
+		}
+
+		Map<String, Map<?, ?>> datasets = new HashMap<>();
+		for (CompletableFuture<Object[]> batch : batches) {
+			for (Object found : ComlakeCoreService.join(batch)) {
+				if (found instanceof Map) {
+					Map<?, ?> dataset = (Map<?, ?>) found;
+					datasets.put(String.valueOf(dataset.get("id")), dataset);
+				}
+			}
+		}
+		return datasets;
+	}
+
+	private static String datasetIdOf(Object entity) {
+		if (entity instanceof File) {
+			return ((File) entity).getDatasetId();
+		}
+		if (entity instanceof Folder) {
+			return ((Folder) entity).getDatasetId();
+		}
+		return null;
+	}
+}
@@ -0,0 +1,495 @@
+package com.ulake.api.security.services;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.ServletOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.apache.commons.compress.utils.BoundedInputStream;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ContentDisposition;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.MediaTypeFactory;
+import org.springframework.stereotype.Service;
+import org.springframework.util.MimeTypeUtils;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.context.request.ServletWebRequest;
+
+import com.ulake.api.models.File;
+
+/**
+ * Serves file content to HTTP clients, including byte ranges. Content in the
+ * local blob cache is sent from disk. Whole-file misses follow the single cache
+ * fill in flight for the cid; for ranges only the requested windows are fetched
+ * from core, and the cache is filled in the background when the file is small
+ * enough to be kept. The Content-Type comes from the file name, so it is the
+ * same whether or not the content is cached.
+ */
+@Service
+public class FileDownloadService {
+	@Value("${app.coreBufferSize:65536}")
+	private int bufferSize;
+
+	// More ranges than this are answered with the whole file
+	@Value("${app.download.maxRanges:16}")
+	private int maxRanges;
+
+	@Autowired
+	private ComlakeCoreService coreService;
+
+	@Autowired
+	private BlobCacheService blobCache;
+
+	// Tomcat request attributes for handing a file region to the connector
+	private static final String SENDFILE_SUPPORT = "org.apache.tomcat.sendfile.support";
+	private static final String SENDFILE_FILENAME = "org.apache.tomcat.sendfile.filename";
+	private static final String SENDFILE_START = "org.apache.tomcat.sendfile.start";
+	private static final String SENDFILE_END = "org.apache.tomcat.sendfile.end";
+
+	// Private: access is checked per user, so shared caches must not keep it
+	private static final String IMMUTABLE = CacheControl.maxAge(365, TimeUnit.DAYS).cachePrivate().getHeaderValue()
+			+ ", immutable";
+
+	public static String etagFor(String cid) {
+		return "\"" + cid + "\"";
+	}
+
+	public void serve(File fileInfo, HttpServletRequest request, HttpServletResponse response) throws IOException {
+		String cid = fileInfo.getCid();
+		response.setHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+		response.setHeader(HttpHeaders.CACHE_CONTROL, IMMUTABLE);
+		// Sets ETag and Last-Modified, and answers 304 when the client's copy
+		// matches. Bytes under a cid never change, so the creation date is the
+		// last modification.
+		long created = fileInfo.getCreatedDate() != null ? fileInfo.getCreatedDate().getTime() : -1;
+		if (new ServletWebRequest(request, response).checkNotModified(etagFor(cid), created)) {
+			return;
+		}
+		response.setHeader(HttpHeaders.CONTENT_DISPOSITION,
+				ContentDisposition.attachment().filename(fileInfo.getName(), StandardCharsets.UTF_8).build().toString());
+
+		String contentType = MediaTypeFactory.getMediaType(fileInfo.getName())
+				.orElse(MediaType.APPLICATION_OCTET_STREAM).toString();
+		List<HttpRange> ranges = requestedRanges(fileInfo, request);
+		Optional<Path> cached = blobCache.lookup(cid);
+		if (cached.isPresent() && serveCached(fileInfo, cached.get(), contentType, ranges, request, response)) {
+			return;
+		}
+		response.setContentType(contentType);
+		if (ranges.isEmpty()) {
+			serveFull(cid, response);
+		} else if (ranges.size() == 1) {
+			serveRange(cid, ranges.get(0), response);
+		} else {
+			serveRanges(cid, ranges, contentType, response);
+		}
+	}
+
+	// Range readers such as media players may never ask for the whole file, so
+	// fill the cache for the next request in the background. The total comes
+	// from the window just opened; a file too large to keep, or of unknown
+	// length, is not fetched whole for nothing.
+	private void warm(String cid, long total) {
+		if (total >= 0) {
+			blobCache.warm(cid, total);
+		}
+	}
+
+	// The ranges to honour, or an empty list to send the whole file. A Range
+	// header that cannot be parsed, or an If-Range validator that does not
+	// match, falls back to the whole file as RFC 7233 allows.
+	private List<HttpRange> requestedRanges(File fileInfo, HttpServletRequest request) {
+		String rangeHeader = request.getHeader(HttpHeaders.RANGE);
+		if (rangeHeader == null || !ifRangeMatches(fileInfo, request)) {
+			return List.of();
+		}
+		try {
+			List<HttpRange> ranges = HttpRange.parseRanges(rangeHeader);
+			return ranges.size() <= maxRanges ? ranges : List.of();
+		} catch (IllegalArgumentException e) {
+			return List.of();
+		}
+	}
+
+	private static boolean ifRangeMatches(File fileInfo, HttpServletRequest request) {
+		String ifRange = request.getHeader(HttpHeaders.IF_RANGE);
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// Strong comparison, a weak validator never matches
+			return ifRange.equals(etagFor(fileInfo.getCid()));
+		}
+		// Content under a File never changes, so any date since its creation is
+		// still valid
+		try {
+			long date = request.getDateHeader(HttpHeaders.IF_RANGE);
+			return fileInfo.getCreatedDate() != null && fileInfo.getCreatedDate().getTime() / 1000 <= date / 1000;
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	// False when the cached file has gone missing, so the caller falls back to core
+	private boolean serveCached(File fileInfo, Path path, String contentType, List<HttpRange> ranges,
+			HttpServletRequest request, HttpServletResponse response) throws IOException {
+		FileChannel channel;
+		try {
+			channel = FileChannel.open(path, StandardOpenOption.READ);
+		} catch (NoSuchFileException e) {
+			blobCache.remove(fileInfo.getCid());
+			return false;
+		}
+		try (FileChannel opened = channel) {
+			long total = opened.size();
+			if (ranges.isEmpty()) {
+				response.setContentType(contentType);
+				response.setContentLengthLong(total);
+				sendRegion(path, opened, 0, total, request, response);
+				return true;
+			}
+
+			// Each region is {first byte, last byte}
+			List<long[]> regions = new ArrayList<>(ranges.size());
+			for (HttpRange range : ranges) {
+				long start = range.getRangeStart(total);
+				long end = range.getRangeEnd(total);
+				if (start < total && start <= end) {
+					regions.add(new long[] { start, end });
+				}
+			}
+			if (regions.isEmpty()) {
+				rangeNotSatisfiable(total, response);
+				return true;
+			}
+
+			response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+			if (regions.size() == 1) {
+				long[] region = regions.get(0);
+				response.setContentType(contentType);
+				response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes " + region[0] + "-" + region[1] + "/" + total);
+				response.setContentLengthLong(region[1] - region[0] + 1);
+				sendRegion(path, opened, region[0], region[1] - region[0] + 1, request, response);
+				return true;
+			}
+
+			String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+			response.setContentType("multipart/byteranges; boundary=" + boundary);
+			ServletOutputStream out = response.getOutputStream();
+			for (long[] region : regions) {
+				writeAscii(out, "\r\n--" + boundary + "\r\n");
+				writeAscii(out, HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n");
+				writeAscii(out,
+						HttpHeaders.CONTENT_RANGE + ": bytes " + region[0] + "-" + region[1] + "/" + total + "\r\n\r\n");
+				transfer(opened, region[0], region[1] - region[0] + 1, out);
+				blobCache.recordServed(region[1] - region[0] + 1);
+			}
+			writeAscii(out, "\r\n--" + boundary + "--\r\n");
+			out.flush();
+			return true;
+		}
+	}
+
+	// Let the connector send the region with sendfile when it can. Tomcat opens
+	// the path only after this request returns, so that is done only while the
+	// cache cannot evict; otherwise the region is copied from the channel,
+	// which stays readable even if the file is deleted.
+	private void sendRegion(Path path, FileChannel channel, long start, long length, HttpServletRequest request,
+			HttpServletResponse response) throws IOException {
+		if (Boolean.TRUE.equals(request.getAttribute(SENDFILE_SUPPORT)) && blobCache.isEvictionIdle()) {
+			request.setAttribute(SENDFILE_FILENAME, path.toAbsolutePath().toString());
+			request.setAttribute(SENDFILE_START, start);
+			request.setAttribute(SENDFILE_END, start + length);
+		} else {
+			transfer(channel, start, length, response.getOutputStream());
+		}
+		blobCache.recordServed(length);
+	}
+
+	private static void transfer(FileChannel channel, long start, long length, OutputStream out) throws IOException {
+		WritableByteChannel target = Channels.newChannel(out);
+		long position = start;
+		long end = start + length;
+		while (position < end) {
+			long sent = channel.transferTo(position, end - position, target);
+			if (sent <= 0) {
+				throw new IOException("Cached content ended before offset " + end);
+			}
+			position += sent;
+		}
+		out.flush();
+	}
+
+	// On a miss the client follows the fill for the cid, joining one already in
+	// flight so concurrent downloads share a single transfer from core
+	private void serveFull(String cid, HttpServletResponse response) throws IOException {
+		BlobCacheService.Reader reader;
+		try {
+			reader = blobCache.read(cid);
+		} catch (TaskRejectedException e) {
+			reader = null;
+		}
+		if (reader != null) {
+			try (InputStream in = reader) {
+				long total = reader.awaitTotal();
+				if (total >= 0) {
+					response.setContentLengthLong(total);
+				}
+				ServletOutputStream out = response.getOutputStream();
+				byte[] buffer = new byte[bufferSize];
+				int read;
+				while ((read = in.read(buffer)) != -1) {
+					out.write(buffer, 0, read);
+				}
+				out.flush();
+			}
+			return;
+		}
+		// Every fill thread is busy
+		try (CoreContent content = coreService.openFile(cid)) {
+			if (content.getContentLength() >= 0) {
+				response.setContentLengthLong(content.getContentLength());
+			}
+			content.transferTo(response.getOutputStream(), bufferSize);
+		}
+	}
+
+	private void serveRange(String cid, HttpRange range, HttpServletResponse response) throws IOException {
+		Window window;
+		try {
+			window = openWindow(cid, range);
+		} catch (RangeNotSatisfiableException e) {
+			rangeNotSatisfiable(e.total, response);
+			return;
+		}
+		try (Window opened = window) {
+			warm(cid, opened.total);
+			if (opened.whole) {
+				// Length unknown, a window cannot be cut out of it
+				opened.copyTo(response.getOutputStream());
+				return;
+			}
+			response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+			response.setHeader(HttpHeaders.CONTENT_RANGE, opened.contentRange());
+			response.setContentLengthLong(opened.length());
+			opened.copyTo(response.getOutputStream());
+		}
+	}
+
+	// Several ranges go out as multipart/byteranges, one core request each.
+	// Unsatisfiable ranges are left out; only when none is left is it a 416.
+	private void serveRanges(String cid, List<HttpRange> ranges, String contentType, HttpServletResponse response)
+			throws IOException {
+		String boundary = MimeTypeUtils.generateMultipartBoundaryString();
+		ServletOutputStream out = null;
+		long unsatisfiableTotal = -1;
+		for (HttpRange range : ranges) {
+			Window window;
+			try {
+				window = openWindow(cid, range);
+			} catch (RangeNotSatisfiableException e) {
+				unsatisfiableTotal = e.total;
+				continue;
+			}
+			try (Window opened = window) {
+				if (out == null) {
+					warm(cid, opened.total);
+				}
+				if (opened.whole) {
+					if (out == null) {
+						opened.copyTo(response.getOutputStream());
+						return;
+					}
+					continue;
+				}
+				if (out == null) {
+					response.setStatus(HttpStatus.PARTIAL_CONTENT.value());
+					response.setContentType("multipart/byteranges; boundary=" + boundary);
+					out = response.getOutputStream();
+				}
+				writeAscii(out, "\r\n--" + boundary + "\r\n");
+				writeAscii(out, HttpHeaders.CONTENT_TYPE + ": " + contentType + "\r\n");
+				writeAscii(out, HttpHeaders.CONTENT_RANGE + ": " + opened.contentRange() + "\r\n\r\n");
+				opened.copyTo(out);
+			}
+		}
+		if (out != null) {
+			writeAscii(out, "\r\n--" + boundary + "--\r\n");
+			out.flush();
+		} else {
+			rangeNotSatisfiable(unsatisfiableTotal, response);
+		}
+	}
+
+	private static void rangeNotSatisfiable(long total, HttpServletResponse response) {
+		response.setStatus(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE.value());
+		response.setHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + (total >= 0 ? String.valueOf(total) : "*"));
+	}
+
+	private static void writeAscii(OutputStream out, String text) throws IOException {
+		out.write(text.getBytes(StandardCharsets.US_ASCII));
+	}
+
+	private Window openWindow(String cid, HttpRange range) throws IOException {
+		CoreContent content;
+		try {
+			content = coreService.openFile(cid, range);
+		} catch (HttpClientErrorException e) {
+			if (e.getStatusCode() == HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE) {
+				HttpHeaders headers = e.getResponseHeaders();
+				String contentRange = headers != null ? headers.getFirst(HttpHeaders.CONTENT_RANGE) : null;
+				throw new RangeNotSatisfiableException(totalFromContentRange(contentRange));
+			}
+			throw e;
+		}
+
+		try {
+			if (content.getStatus() == HttpStatus.PARTIAL_CONTENT) {
+				// Core cut the window itself: "bytes start-end/total"
+				String contentRange = content.getHeaders().getFirst(HttpHeaders.CONTENT_RANGE);
+				long[] bounds = boundsFromContentRange(contentRange);
+				if (bounds == null) {
+					// Without its bounds the window cannot be placed in the file
+					throw new IOException("Core answered 206 for " + cid + " with Content-Range " + contentRange);
+				}
+				return new Window(content, content.getBody(), bounds[0], bounds[1],
+						totalFromContentRange(contentRange));
+			}
+
+			long total = content.getContentLength();
+			if (total < 0) {
+				return new Window(content, content.getBody(), 0, -1, -1);
+			}
+			long start = range.getRangeStart(total);
+			long end = range.getRangeEnd(total);
+			if (start >= total || start > end) {
+				throw new RangeNotSatisfiableException(total);
+			}
+			InputStream body = content.getBody();
+			skipFully(body, start);
+			return new Window(content, body, start, end, total);
+		} catch (IOException | RuntimeException e) {
+			content.close();
+			throw e;
+		}
+	}
+
+	// {first byte, last byte}, or null when missing or malformed
+	private static long[] boundsFromContentRange(String contentRange) {
+		if (contentRange == null) {
+			return null;
+		}
+		int space = contentRange.indexOf(' ');
+		int slash = contentRange.indexOf('/');
+		int dash = contentRange.indexOf('-', space + 1);
+		if (space < 0 || dash < 0 || slash < dash) {
+			return null;
+		}
+		try {
+			long start = Long.parseLong(contentRange.substring(space + 1, dash).trim());
+			long end = Long.parseLong(contentRange.substring(dash + 1, slash).trim());
+			return start <= end ? new long[] { start, end } : null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static long totalFromContentRange(String contentRange) {
+		if (contentRange == null || contentRange.endsWith("/*")) {
+			return -1;
+		}
+		try {
+			return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+		} catch (NumberFormatException | IndexOutOfBoundsException e) {
+			return -1;
+		}
+	}
+
+	private static void skipFully(InputStream in, long bytes) throws IOException {
+		while (bytes > 0) {
+			long skipped = in.skip(bytes);
+			if (skipped <= 0) {
+				if (in.read() == -1) {
+					throw new IOException("Content ended before offset");
+				}
+				skipped = 1;
+			}
+			bytes -= skipped;
+		}
+	}
+
+	// A byte window of a file, positioned at its first byte. When whole is set
+	// the source could not be cut and the stream holds the entire file.
+	private class Window implements Closeable {
+		private final Closeable source;
+		private final InputStream body;
+		private final long start;
+		private final long end;
+		private final long total;
+		private final boolean whole;
+
+		Window(Closeable source, InputStream body, long start, long end, long total) {
+			this.source = source;
+			this.start = start;
+			this.end = end;
+			this.total = total;
+			this.whole = end < 0;
+			this.body = whole ? body : new BoundedInputStream(body, end - start + 1);
+		}
+
+		long length() {
+			return end - start + 1;
+		}
+
+		String contentRange() {
+			return "bytes " + start + "-" + end + "/" + (total >= 0 ? String.valueOf(total) : "*");
+		}
+
+		void copyTo(OutputStream out) throws IOException {
+			byte[] buffer = new byte[bufferSize];
+			int read;
+			while ((read = body.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			out.flush();
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+
+	private static class RangeNotSatisfiableException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		private final long total;
+
+		RangeNotSatisfiableException(long total) {
+			super("Range not satisfiable");
+			this.total = total;
+		}
+	}
+}
@@ -0,0 +1,185 @@
+package com.ulake.api.security.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.io.InputStreamSource;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.concurrent.DelegatingSecurityContextExecutor;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.ulake.api.constant.AclSourceType;
+import com.ulake.api.models.File;
+import com.ulake.api.models.User;
+import com.ulake.api.payload.response.FileUploadResult;
+import com.ulake.api.repository.FileRepository;
+import com.ulake.api.ulti.CountingInputStream;
+
+@Service
+public class FileIngestService {
+	@Autowired
+	private FileRepository fileRepository;
+
+	@Autowired
+	private LocalPermissionService permissionService;
+
+	@Autowired
+	private ComlakeCoreService coreService;
+
+	@Autowired
+	private ContentDigestService digestService;
+
+	@Autowired
+	@Qualifier("ingestExecutor")
+	private ThreadPoolTaskExecutor ingestExecutor;
+
+	// Stream the data to core, then register the dataset, the File entity and
+	// its permissions. A negative size means the length is unknown up front.
+	public File ingest(User owner, String fileName, InputStream data, long size, String mimeType, String source,
+			List<String> topics, String language) throws IOException {
+		StagedFile staged = transfer(owner, fileName, data, size, mimeType);
+		describe(staged, source, topics, language);
+		return persist(staged);
+	}
+
+	// Same as above for content that is already on local disk and can be read
+	// twice. Known content is matched by digest and skips the core transfer.
+	public File ingest(User owner, String fileName, InputStreamSource data, long size, String mimeType,
+			String source, List<String> topics, String language) throws IOException {
+		StagedFile staged = transfer(owner, fileName, data, size, mimeType);
+		describe(staged, source, topics, language);
+		return persist(staged);
+	}
+
+	// Transfer and describe the data without saving anything locally, for
+	// callers that persist many files together
+	public File prepare(User owner, String fileName, InputStream data, long size, String mimeType, String source,
+			List<String> topics, String language) throws IOException {
+		StagedFile staged = transfer(owner, fileName, data, size, mimeType);
+		describe(staged, source, topics, language);
+		return staged.file;
+	}
+
+	// Ingest many uploaded parts at once. Each part moves through the transfer,
+	// describe and persist stages on the ingest pool, so the core transfer of
+	// one file overlaps with the metadata and ACL writes of the others. Results
+	// come back in the order of the parts.
+	public List<FileUploadResult> ingestAll(User owner, List<MultipartFile> files, String source, List<String> topics,
+			String language) {
+		// Workers need the caller's authentication for auditing and ACL ownership
+		Executor executor = new DelegatingSecurityContextExecutor(ingestExecutor);
+
+		List<CompletableFuture<FileUploadResult>> pending = new ArrayList<>(files.size());
+		for (MultipartFile file : files) {
+			String fileName = StringUtils.getFilename(file.getOriginalFilename());
+			CompletableFuture<FileUploadResult> result = CompletableFuture.supplyAsync(() -> {
+				try {
+					return transfer(owner, fileName, file, file.getSize(), file.getContentType());
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor).thenApplyAsync(staged -> {
+				try {
+					return describe(staged, source, topics, language);
+				} catch (IOException e) {
+					throw new UncheckedIOException(e);
+				}
+			}, executor).thenApplyAsync(this::persist, executor)
+					.handle((fileInfo, ex) -> fileInfo != null ? new FileUploadResult(fileName, fileInfo)
+							: new FileUploadResult(fileName, rootCause(ex).getMessage()));
+			pending.add(result);
+		}
+
+		List<FileUploadResult> results = new ArrayList<>(pending.size());
+		for (CompletableFuture<FileUploadResult> result : pending) {
+			results.add(result.join());
+		}
+		return results;
+	}
+
+	// The digest is computed while the data streams to core and indexed for
+	// later uploads of the same content
+	private StagedFile transfer(User owner, String fileName, InputStream data, long size, String mimeType)
+			throws IOException {
+		File fileInfo = new File(owner, fileName);
+		MessageDigest md = digestService.newDigest();
+		CountingInputStream counted = new CountingInputStream(new DigestInputStream(data, md));
+		String cid = coreService.postFile(counted, size, mimeType);
+		fileInfo.setCid(cid);
+		digestService.record(ContentDigestService.toHex(md.digest()), cid, counted.getCount());
+		return new StagedFile(fileInfo, counted.getCount(), mimeType);
+	}
+
+	private StagedFile transfer(User owner, String fileName, InputStreamSource data, long size, String mimeType)
+			throws IOException {
+		String digest;
+		try (InputStream in = data.getInputStream()) {
+			digest = digestService.digest(in);
+		}
+		Optional<String> knownCid = digestService.findCid(digest, size);
+		if (knownCid.isPresent()) {
+			File fileInfo = new File(owner, fileName);
+			fileInfo.setCid(knownCid.get());
+			return new StagedFile(fileInfo, size, mimeType);
+		}
+		try (InputStream in = data.getInputStream()) {
+			return transfer(owner, fileName, in, size, mimeType);
+		}
+	}
+
+	private StagedFile describe(StagedFile staged, String source, List<String> topics, String language)
+			throws IOException {
+		File fileInfo = staged.file;
+		String datasetId = coreService.addDataset(fileInfo.getCid(), fileInfo.getName(), source, topics, staged.size,
+				staged.mimeType, language);
+		fileInfo.setDatasetId(datasetId);
+		return staged;
+	}
+
+	private File persist(StagedFile staged) {
+		File fileInfo = staged.file;
+		// Save File Metadata in our db;
+		fileRepository.save(fileInfo);
+
+		grantOwnerPermissions(fileInfo, fileInfo.getOwner());
+		return fileInfo;
+	}
+
+	private static Throwable rootCause(Throwable ex) {
+		while ((ex instanceof CompletionException || ex instanceof UncheckedIOException) && ex.getCause() != null) {
+			ex = ex.getCause();
+		}
+		return ex;
+	}
+
+	// Add ACL WRITE and READ Permission For Admin and File Owner
+	private void grantOwnerPermissions(File fileInfo, User owner) {
+		permissionService.grantOwner(fileInfo, AclSourceType.FILE, owner.getUsername());
+	}
+
+	// A file between pipeline stages, with the byte count seen on transfer
+	private static class StagedFile {
+		private final File file;
+		private final long size;
+		private final String mimeType;
+
+		StagedFile(File file, long size, String mimeType) {
+			this.file = file;
+			this.size = size;
+			this.mimeType = mimeType;
+		}
+	}
+}
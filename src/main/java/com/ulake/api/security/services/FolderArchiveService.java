@@ -0,0 +1,244 @@
+package com.ulake.api.security.services;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.acls.AclPermissionEvaluator;
+import org.springframework.security.core.Authentication;
+import org.springframework.stereotype.Service;
+
+import com.ulake.api.models.File;
+import com.ulake.api.models.Folder;
+
+/**
+ * Streams a folder subtree as a zip archive. Entries are written one file at a
+ * time straight from core (or the blob cache) into the zip; while one file is
+ * being written the next one is opened and its first window read ahead, so
+ * core latency is hidden without holding more than one window per request.
+ */
+@Service
+public class FolderArchiveService {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FolderArchiveService.class);
+
+	@Value("${app.coreBufferSize:65536}")
+	private int bufferSize;
+
+	// Bytes of the next file read ahead while the current one is written
+	@Value("${app.download.archive.prefetchBytes:1048576}")
+	private int prefetchBytes;
+
+	@Autowired
+	private ComlakeCoreService coreService;
+
+	@Autowired
+	private BlobCacheService blobCache;
+
+	@Autowired
+	private AclPermissionEvaluator permissionEvaluator;
+
+	@Autowired
+	@Qualifier("archivePrefetchExecutor")
+	private ThreadPoolTaskExecutor prefetchExecutor;
+
+	public void write(Folder root, Authentication authentication, OutputStream out) throws IOException {
+		// Walk the tree up front, on the request thread where lazy collections load
+		List<Entry> entries = new ArrayList<>();
+		collect(root, "", authentication, entries, new HashSet<>());
+
+		ZipOutputStream zip = new ZipOutputStream(out);
+		zip.setLevel(Deflater.BEST_SPEED);
+		int next = nextFile(entries, 0);
+		Future<Content> pending = next < entries.size() ? prefetch(entries.get(next).file) : null;
+		try {
+			for (int i = 0; i < entries.size(); i++) {
+				Entry entry = entries.get(i);
+				ZipEntry zipEntry = new ZipEntry(entry.path);
+				if (entry.file != null && entry.file.getCreatedDate() != null) {
+					zipEntry.setTime(entry.file.getCreatedDate().getTime());
+				}
+				zip.putNextEntry(zipEntry);
+				if (entry.file != null) {
+					Content current = await(pending);
+					next = nextFile(entries, i + 1);
+					pending = next < entries.size() ? prefetch(entries.get(next).file) : null;
+					try (Content content = current) {
+						content.copyTo(zip);
+					}
+				}
+				zip.closeEntry();
+			}
+			zip.finish();
+			zip.flush();
+		} finally {
+			discard(pending);
+		}
+	}
+
+	// Folders the caller cannot read are left out along with everything in them.
+	// Nothing stops a folder from being moved under its own subtree, so each
+	// folder is visited once and a cycle back to it is skipped.
+	private void collect(Folder folder, String prefix, Authentication authentication, List<Entry> entries,
+			Set<Long> visited) {
+		if (!visited.add(folder.getId())) {
+			LOGGER.warn("Folder {} is its own ancestor, not archived again under {}", folder.getId(), prefix);
+			return;
+		}
+		Set<String> names = new HashSet<>();
+		if (!prefix.isEmpty()) {
+			entries.add(new Entry(prefix, null));
+		}
+
+		List<File> files = new ArrayList<>(folder.getFiles());
+		files.sort(Comparator.comparing(File::getName, Comparator.nullsFirst(Comparator.naturalOrder())));
+		for (File file : files) {
+			if (permissionEvaluator.hasPermission(authentication, file, "READ")) {
+				entries.add(new Entry(prefix + uniqueName(file.getName(), names), file));
+			}
+		}
+
+		List<Folder> subfolders = new ArrayList<>(folder.getSubfolders());
+		subfolders.sort(Comparator.comparing(Folder::getName, Comparator.nullsFirst(Comparator.naturalOrder())));
+		for (Folder subfolder : subfolders) {
+			if (permissionEvaluator.hasPermission(authentication, subfolder, "READ")) {
+				collect(subfolder, prefix + uniqueName(subfolder.getName(), names) + "/", authentication, entries,
+						visited);
+			}
+		}
+	}
+
+	// Zip entry names must be unique; later duplicates get a " (n)" suffix
+	private static String uniqueName(String name, Set<String> taken) {
+		String base = name == null || name.isEmpty() ? "unnamed" : name.replace('/', '_').replace('\\', '_');
+		String candidate = base;
+		int n = 1;
+		while (!taken.add(candidate)) {
+			int dot = base.lastIndexOf('.');
+			candidate = dot > 0 ? base.substring(0, dot) + " (" + n + ")" + base.substring(dot)
+					: base + " (" + n + ")";
+			n++;
+		}
+		return candidate;
+	}
+
+	private static int nextFile(List<Entry> entries, int from) {
+		int i = from;
+		while (i < entries.size() && entries.get(i).file == null) {
+			i++;
+		}
+		return i;
+	}
+
+	private Future<Content> prefetch(File file) {
+		return prefetchExecutor.submit(() -> open(file.getCid()));
+	}
+
+	private Content open(String cid) throws IOException {
+		Optional<Path> cached = blobCache.lookup(cid);
+		if (cached.isPresent()) {
+			try {
+				InputStream in = Files.newInputStream(cached.get());
+				return new Content(in, in);
+			} catch (NoSuchFileException e) {
+				blobCache.remove(cid);
+			}
+		}
+		CoreContent content = coreService.openFile(cid);
+		try {
+			InputStream body = content.getBody();
+			byte[] head = new byte[prefetchBytes];
+			int read = body.readNBytes(head, 0, head.length);
+			return new Content(content, new SequenceInputStream(new ByteArrayInputStream(head, 0, read), body));
+		} catch (IOException | RuntimeException e) {
+			content.close();
+			throw e;
+		}
+	}
+
+	private static Content await(Future<Content> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for core", e);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	// Close a prefetched file that will not be written, releasing its permit
+	private static void discard(Future<Content> pending) {
+		if (pending == null) {
+			return;
+		}
+		try {
+			await(pending).close();
+		} catch (IOException | RuntimeException e) {
+			LOGGER.debug("Discarded prefetch failed", e);
+		}
+	}
+
+	private static class Entry {
+		private final String path;
+		// Null for a directory entry
+		private final File file;
+
+		Entry(String path, File file) {
+			this.path = path;
+			this.file = file;
+		}
+	}
+
+	private class Content implements Closeable {
+		private final Closeable source;
+		private final InputStream body;
+
+		Content(Closeable source, InputStream body) {
+			this.source = source;
+			this.body = body;
+		}
+
+		void copyTo(OutputStream out) throws IOException {
+			byte[] buffer = new byte[bufferSize];
+			int read;
+			while ((read = body.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+		}
+
+		@Override
+		public void close() throws IOException {
+			source.close();
+		}
+	}
+}
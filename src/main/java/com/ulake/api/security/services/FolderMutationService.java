@@ -0,0 +1,155 @@
+package com.ulake.api.security.services;
+
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskScheduler;
+import org.springframework.stereotype.Service;
+
+import com.ulake.api.repository.FolderRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Serializes changes to a folder's directory cid. Additions to one folder are
+ * gathered for a short window, then copied into its directory in core in the
+ * order they came in, and the resulting cid is written once for the whole
+ * batch. Only one batch per folder runs at a time, so concurrent additions
+ * cannot overwrite each other's cid.
+ */
+@Service
+public class FolderMutationService {
+	@Value("${app.folder.mutation.windowMs:20}")
+	private long windowMs;
+
+	@Value("${app.folder.mutation.maxBatch:1000}")
+	private int maxBatch;
+
+	@Autowired
+	private ComlakeCoreService coreService;
+
+	@Autowired
+	private FolderRepository folderRepository;
+
+	@Autowired
+	@Qualifier("folderMutationScheduler")
+	private ThreadPoolTaskScheduler scheduler;
+
+	// Folders with additions pending or being applied, guarded by itself
+	private final Map<Long, Pending> folders = new HashMap<>();
+
+	private final Counter batches;
+	private final Counter additions;
+	private final Counter copies;
+
+	public FolderMutationService(MeterRegistry registry) {
+		batches = Counter.builder("folder.mutation.batches").register(registry);
+		additions = Counter.builder("folder.mutation.additions").register(registry);
+		copies = Counter.builder("folder.mutation.copies").description("Copies sent to core after coalescing")
+				.register(registry);
+	}
+
+	/**
+	 * Add a file or directory to a folder under the given name, replacing what
+	 * was there. Waits until the batch holding it is applied and returns the
+	 * folder's new cid.
+	 */
+	public String add(Long folderId, String cid, String name) throws IOException {
+		Addition addition = new Addition(cid, name);
+		synchronized (folders) {
+			Pending pending = folders.computeIfAbsent(folderId, Pending::new);
+			pending.additions.add(addition);
+			if (!pending.scheduled) {
+				pending.scheduled = true;
+				scheduler.schedule(() -> flush(pending), Instant.now().plusMillis(windowMs));
+			}
+		}
+		return ComlakeCoreService.join(addition.done);
+	}
+
+	private void flush(Pending pending) {
+		List<Addition> batch = new ArrayList<>();
+		synchronized (folders) {
+			while (batch.size() < maxBatch && !pending.additions.isEmpty()) {
+				batch.add(pending.additions.poll());
+			}
+		}
+		try {
+			apply(pending.folderId, batch);
+		} finally {
+			synchronized (folders) {
+				if (pending.additions.isEmpty()) {
+					folders.remove(pending.folderId);
+				} else {
+					// What came in meanwhile already waited a window
+					scheduler.execute(() -> flush(pending));
+				}
+			}
+		}
+	}
+
+	private void apply(Long folderId, List<Addition> batch) {
+		// A later addition under the same name replaces an earlier one, so only
+		// the last is copied
+		Map<String, Addition> latest = new LinkedHashMap<>();
+		for (Addition addition : batch) {
+			latest.remove(addition.name);
+			latest.put(addition.name, addition);
+		}
+		try {
+			String cid = folderRepository.findCidById(folderId)
+					.orElseThrow(() -> new IllegalStateException("Folder " + folderId + " no longer exists"));
+			for (Addition addition : latest.values()) {
+				cid = coreService.cpToDir(addition.cid, cid, addition.name);
+			}
+			folderRepository.updateCid(folderId, cid, new Date());
+			coreService.warmListing(cid);
+
+			batches.increment();
+			additions.increment(batch.size());
+			copies.increment(latest.size());
+			for (Addition addition : batch) {
+				addition.done.complete(cid);
+			}
+		} catch (IOException | RuntimeException e) {
+			for (Addition addition : batch) {
+				addition.done.completeExceptionally(e);
+			}
+		}
+	}
+
+	private static class Pending {
+		private final Long folderId;
+		private final Queue<Addition> additions = new ArrayDeque<>();
+		// A flush is scheduled or running
+		private boolean scheduled;
+
+		Pending(Long folderId) {
+			this.folderId = folderId;
+		}
+	}
+
+	private static class Addition {
+		private final String cid;
+		private final String name;
+		private final CompletableFuture<String> done = new CompletableFuture<>();
+
+		Addition(String cid, String name) {
+			this.cid = cid;
+			this.name = name;
+		}
+	}
+}
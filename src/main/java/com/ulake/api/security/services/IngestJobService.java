@@ -0,0 +1,185 @@
+package com.ulake.api.security.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Date;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.task.TaskRejectedException;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.security.concurrent.DelegatingSecurityContextRunnable;
+import org.springframework.security.core.context.SecurityContext;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.stereotype.Service;
+import org.springframework.util.StringUtils;
+import org.springframework.web.multipart.MultipartFile;
+
+import com.ulake.api.advice.CoreOverloadedException;
+import com.ulake.api.constant.IngestJobState;
+import com.ulake.api.models.File;
+import com.ulake.api.models.User;
+import com.ulake.api.payload.response.IngestJobResponse;
+import com.ulake.api.ulti.CountingInputStream;
+
+/**
+ * Runs uploads in the background so request threads are not held for the
+ * whole core and ACL sequence. The body is spooled to local disk first, then a
+ * job on the dedicated executor ingests it. Jobs live in memory and are
+ * forgotten some time after they finish; spooled bodies of jobs lost to a
+ * restart are deleted at startup.
+ */
+@Service
+public class IngestJobService {
+	private static final Logger LOGGER = LoggerFactory.getLogger(IngestJobService.class);
+
+	@Value("${app.upload.spoolDir}")
+	private String spoolDir;
+
+	@Value("${app.ingest.jobRetentionMinutes:60}")
+	private long retentionMinutes;
+
+	@Value("${app.core.admission.retryAfterSeconds:5}")
+	private long retryAfterSeconds;
+
+	@Autowired
+	private FileIngestService ingestService;
+
+	@Autowired
+	@Qualifier("ingestJobExecutor")
+	private ThreadPoolTaskExecutor ingestJobExecutor;
+
+	private final ConcurrentMap<String, Job> jobs = new ConcurrentHashMap<>();
+
+	@PostConstruct
+	public void init() throws IOException {
+		Files.createDirectories(Paths.get(spoolDir));
+		// No job survives a restart, so neither should its spooled body
+		try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(Paths.get(spoolDir), "job-*")) {
+			for (Path leftover : leftovers) {
+				Files.deleteIfExists(leftover);
+				LOGGER.info("Deleted spooled body of a lost ingest job {}", leftover);
+			}
+		}
+	}
+
+	public IngestJobResponse submit(User owner, MultipartFile file, String source, List<String> topics,
+			String language) throws IOException {
+		purgeFinished();
+		// Refuse before spooling the body; execute below still catches a
+		// queue that filled up meanwhile
+		if (ingestJobExecutor.getThreadPoolExecutor().getQueue().remainingCapacity() == 0) {
+			throw overloaded();
+		}
+
+		String id = UUID.randomUUID().toString();
+		Path path = Paths.get(spoolDir, "job-" + id);
+		file.transferTo(path);
+
+		Job job = new Job(id, owner, StringUtils.getFilename(file.getOriginalFilename()), file.getSize());
+		jobs.put(id, job);
+		String mimeType = file.getContentType();
+		Runnable task = () -> run(job, path, mimeType, source, topics, language);
+		// The job outlives the request, so it gets its own copy of the caller's
+		// authentication for auditing and ACL ownership
+		SecurityContext context = SecurityContextHolder.createEmptyContext();
+		context.setAuthentication(SecurityContextHolder.getContext().getAuthentication());
+		try {
+			ingestJobExecutor.execute(new DelegatingSecurityContextRunnable(task, context));
+		} catch (TaskRejectedException e) {
+			jobs.remove(id);
+			Files.deleteIfExists(path);
+			throw overloaded();
+		}
+		return job.toResponse();
+	}
+
+	private CoreOverloadedException overloaded() {
+		return new CoreOverloadedException("Too many pending ingest jobs, try again later", retryAfterSeconds);
+	}
+
+	// Jobs are only visible to the user who submitted them
+	public Optional<IngestJobResponse> find(String id, Long userId) {
+		Job job = jobs.get(id);
+		if (job == null || !job.owner.getId().equals(userId)) {
+			return Optional.empty();
+		}
+		return Optional.of(job.toResponse());
+	}
+
+	private void run(Job job, Path path, String mimeType, String source, List<String> topics, String language) {
+		job.state = IngestJobState.RUNNING;
+		try {
+			File fileInfo = ingestService.ingest(job.owner, job.name, () -> job.track(Files.newInputStream(path)),
+					job.size, mimeType, source, topics, language);
+			job.fileId = fileInfo.getId();
+			job.state = IngestJobState.SUCCEEDED;
+		} catch (Exception e) {
+			LOGGER.error("Ingest job {} failed", job.id, e);
+			job.message = e.getMessage();
+			job.state = IngestJobState.FAILED;
+		} finally {
+			job.finishedDate = new Date();
+			try {
+				Files.deleteIfExists(path);
+			} catch (IOException e) {
+				LOGGER.warn("Could not delete spooled file {}", path, e);
+			}
+		}
+	}
+
+	private void purgeFinished() {
+		long cutoff = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(retentionMinutes);
+		jobs.values().removeIf(job -> job.finishedDate != null && job.finishedDate.getTime() < cutoff);
+	}
+
+	private static class Job {
+		private final String id;
+		private final User owner;
+		private final String name;
+		private final long size;
+		private final Date createdDate = new Date();
+		private volatile IngestJobState state = IngestJobState.QUEUED;
+		private volatile CountingInputStream current;
+		private volatile Long fileId;
+		private volatile String message;
+		private volatile Date finishedDate;
+
+		Job(String id, User owner, String name, long size) {
+			this.id = id;
+			this.owner = owner;
+			this.name = name;
+			this.size = size;
+		}
+
+		// Progress follows the latest pass over the spooled data
+		InputStream track(InputStream in) {
+			CountingInputStream counted = new CountingInputStream(in);
+			current = counted;
+			return counted;
+		}
+
+		IngestJobResponse toResponse() {
+			CountingInputStream counted = current;
+			long bytesProcessed = state == IngestJobState.SUCCEEDED ? size
+					: counted != null ? counted.getCount() : 0;
+			return new IngestJobResponse(id, name, state, size, bytesProcessed, fileId, message, createdDate,
+					finishedDate);
+		}
+	}
+}
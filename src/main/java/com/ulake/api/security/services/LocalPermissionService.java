@@ -1,10 +1,13 @@
 package com.ulake.api.security.services;
 
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.acls.domain.BasePermission;
 import org.springframework.security.acls.domain.GrantedAuthoritySid;
 import org.springframework.security.acls.domain.ObjectIdentityImpl;
 import org.springframework.security.acls.domain.PrincipalSid;
@@ -16,7 +19,12 @@ import org.springframework.transaction.annotation.Transactional;
 import org.springframework.transaction.support.TransactionCallbackWithoutResult;
 import org.springframework.transaction.support.TransactionTemplate;
 
+import com.ulake.api.constant.AclSourceType;
+import com.ulake.api.constant.AclTargetType;
+import com.ulake.api.constant.PermType;
+import com.ulake.api.models.Acl;
 import com.ulake.api.models.IEntity;
+import com.ulake.api.repository.AclRepository;
 
 @Service
 @Transactional
@@ -28,6 +36,9 @@ public class LocalPermissionService {
 	@Autowired
 	private PlatformTransactionManager transactionManager;
 
+	@Autowired
+	private AclRepository aclRepository;
+
 	private Logger LOGGER = LoggerFactory.getLogger(LocalPermissionService.class);
 
 	public void addPermissionForUser(IEntity targetObj, Permission permission, String username) {
@@ -85,6 +96,71 @@ public class LocalPermissionService {
 		LOGGER.error("Remove all permissions to principal {} on Object {}", authority, targetObj);
 	}
 
+	// Apply the same grants to many objects in a single transaction, with one
+	// ACL update per object
+	public void addPermissions(Collection<? extends IEntity> targetObjs, List<AclGrant> grants) {
+		final TransactionTemplate tt = new TransactionTemplate(transactionManager);
+
+		tt.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				for (IEntity targetObj : targetObjs) {
+					final ObjectIdentity oi = new ObjectIdentityImpl(targetObj.getClass(), targetObj.getId());
+
+					MutableAcl acl = null;
+					try {
+						acl = (MutableAcl) aclService.readAclById(oi);
+					} catch (final NotFoundException nfe) {
+						acl = aclService.createAcl(oi);
+					}
+
+					for (AclGrant grant : grants) {
+						acl.insertAce(acl.getEntries().size(), grant.getPermission(), grant.getSid(), true);
+					}
+
+					aclService.updateAcl(acl);
+				}
+			}
+		});
+		LOGGER.error("Grant {} on {} Objects", grants, targetObjs.size());
+	}
+
+	// Apply several grants to one object with a single ACL update
+	public void addPermissions(IEntity targetObj, List<AclGrant> grants) {
+		addPermissions(List.of(targetObj), grants);
+	}
+
+	// READ and WRITE for ROLE_ADMIN and for the owner, given to everything created
+	public static List<AclGrant> ownerGrants(String username) {
+		return List.of(AclGrant.forAuthority("ROLE_ADMIN", BasePermission.READ),
+				AclGrant.forAuthority("ROLE_ADMIN", BasePermission.WRITE),
+				AclGrant.forUser(username, BasePermission.READ), AclGrant.forUser(username, BasePermission.WRITE));
+	}
+
+	// Grant the owner grants on new objects and record the owner's READ and
+	// WRITE in CLake_acls, all in one transaction
+	public void grantOwner(Collection<? extends IEntity> targetObjs, AclSourceType sourceType, String username) {
+		final TransactionTemplate tt = new TransactionTemplate(transactionManager);
+
+		tt.execute(new TransactionCallbackWithoutResult() {
+			@Override
+			protected void doInTransactionWithoutResult(TransactionStatus status) {
+				addPermissions(targetObjs, ownerGrants(username));
+
+				List<Acl> acls = new ArrayList<>(2 * targetObjs.size());
+				for (IEntity targetObj : targetObjs) {
+					acls.add(new Acl(targetObj.getId(), username, sourceType, AclTargetType.USER, PermType.READ));
+					acls.add(new Acl(targetObj.getId(), username, sourceType, AclTargetType.USER, PermType.WRITE));
+				}
+				aclRepository.insertAll(acls);
+			}
+		});
+	}
+
+	public void grantOwner(IEntity targetObj, AclSourceType sourceType, String username) {
+		grantOwner(List.of(targetObj), sourceType, username);
+	}
+
 	public void removeAcl(IEntity targetObj) {
 		deleteAcl(targetObj);
 		LOGGER.error("Remove ACL on Object {}", targetObj);
@@ -0,0 +1,233 @@
+package com.ulake.api.security.services;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import com.ulake.api.advice.UploadNotFoundException;
+import com.ulake.api.advice.UploadOffsetException;
+import com.ulake.api.models.File;
+import com.ulake.api.models.UploadSession;
+import com.ulake.api.models.User;
+import com.ulake.api.payload.request.CreateUploadRequest;
+import com.ulake.api.repository.UploadSessionRepository;
+
+@Service
+public class ResumableUploadService {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ResumableUploadService.class);
+
+	@Value("${app.upload.spoolDir}")
+	private String spoolDir;
+
+	@Value("${app.coreBufferSize:65536}")
+	private int bufferSize;
+
+	// Sessions without progress for this long are dropped with their spool file
+	@Value("${app.upload.sessionTtlMinutes:1440}")
+	private long sessionTtlMinutes;
+
+	@Autowired
+	private UploadSessionRepository uploadSessionRepository;
+
+	@Autowired
+	private FileIngestService ingestService;
+
+	// One lock per session so concurrent chunks of the same upload are applied
+	// one after another. A lock is dropped only once no thread holds or waits
+	// for it; guarded by itself.
+	private final Map<String, SessionLock> locks = new HashMap<>();
+
+	@PostConstruct
+	public void init() throws IOException {
+		Files.createDirectories(Paths.get(spoolDir));
+	}
+
+	public UploadSession create(User owner, CreateUploadRequest request) throws IOException {
+		UploadSession session = new UploadSession(UUID.randomUUID().toString(), owner, request.getName());
+		session.setSize(request.getSize());
+		session.setMimeType(request.getMimeType());
+		session.setSource(request.getSource() != null ? request.getSource() : "unspecified");
+		session.setLanguage(request.getLanguage() != null ? request.getLanguage() : "English");
+		session.setTopics(request.getTopics() != null ? request.getTopics() : List.of("unlisted"));
+
+		Files.createFile(spoolPath(session.getId()));
+		return uploadSessionRepository.save(session);
+	}
+
+	// Write a chunk at the given offset. The offset may rewind into bytes that
+	// are already staged (a retransmit) but may not leave a gap. Whatever reaches
+	// the disk counts, even if the client disconnects mid-chunk.
+	public UploadSession writeChunk(UploadSession session, long offset, InputStream data) throws IOException {
+		SessionLock lock = lock(session.getId());
+		try {
+			// Re-read under the lock, another chunk may have moved the offset
+			session = reload(session.getId());
+			long current = session.getUploadOffset();
+			if (offset < 0 || offset > current) {
+				throw new UploadOffsetException(session.getId(), current,
+						"Chunk offset " + offset + " does not match upload offset " + current);
+			}
+
+			Long size = session.getSize();
+			long position = offset;
+			ByteBuffer buffer = ByteBuffer.allocate(bufferSize);
+			try (FileChannel channel = FileChannel.open(spoolPath(session.getId()), StandardOpenOption.WRITE);
+					ReadableByteChannel in = Channels.newChannel(data)) {
+				try {
+					while (in.read(buffer) != -1) {
+						buffer.flip();
+						if (size != null && position + buffer.remaining() > size) {
+							throw new UploadOffsetException(session.getId(), Math.max(current, position),
+									"Chunk goes past the declared size " + size);
+						}
+						while (buffer.hasRemaining()) {
+							position += channel.write(buffer, position);
+						}
+						buffer.clear();
+					}
+				} finally {
+					channel.force(false);
+					if (position > current) {
+						session.setUploadOffset(position);
+						session = uploadSessionRepository.save(session);
+					}
+				}
+			}
+			return session;
+		} finally {
+			unlock(session.getId(), lock);
+		}
+	}
+
+	// Stream the staged file through core and create the File entity, exactly
+	// like a direct upload would
+	public File complete(UploadSession session) throws IOException {
+		SessionLock lock = lock(session.getId());
+		try {
+			session = reload(session.getId());
+			long staged = session.getUploadOffset();
+			if (session.getSize() != null && staged != session.getSize()) {
+				throw new UploadOffsetException(session.getId(), staged,
+						"Upload is incomplete, " + staged + " of " + session.getSize() + " bytes staged");
+			}
+
+			File fileInfo = ingestService.ingest(session.getOwner(), session.getName(),
+					new FileSystemResource(spoolPath(session.getId())), staged, session.getMimeType(),
+					session.getSource(), session.getTopics(), session.getLanguage());
+			discard(session);
+			return fileInfo;
+		} finally {
+			unlock(session.getId(), lock);
+		}
+	}
+
+	public void abort(UploadSession session) throws IOException {
+		SessionLock lock = lock(session.getId());
+		try {
+			discard(reload(session.getId()));
+		} finally {
+			unlock(session.getId(), lock);
+		}
+	}
+
+	// Drop sessions that made no progress within the TTL, and spool files left
+	// without a session
+	@Scheduled(fixedDelayString = "${app.upload.sweepIntervalMs:600000}")
+	public void expireIdleSessions() {
+		Date cutoff = new Date(System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(sessionTtlMinutes));
+		for (UploadSession idle : uploadSessionRepository.findByLastModifiedDateBefore(cutoff)) {
+			SessionLock lock = lock(idle.getId());
+			try {
+				// A chunk may have arrived since the query
+				UploadSession session = uploadSessionRepository.findById(idle.getId()).orElse(null);
+				if (session != null && session.getLastModifiedDate().before(cutoff)) {
+					discard(session);
+					LOGGER.info("Expired idle upload session {}", session.getId());
+				}
+			} catch (IOException | RuntimeException e) {
+				LOGGER.warn("Could not expire upload session {}", idle.getId(), e);
+			} finally {
+				unlock(idle.getId(), lock);
+			}
+		}
+
+		try (DirectoryStream<Path> parts = Files.newDirectoryStream(Paths.get(spoolDir), "*.part")) {
+			for (Path part : parts) {
+				String id = part.getFileName().toString().replaceFirst("\\.part$", "");
+				if (Files.getLastModifiedTime(part).toMillis() < cutoff.getTime()
+						&& !uploadSessionRepository.existsById(id)) {
+					Files.deleteIfExists(part);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Could not sweep spool directory {}", spoolDir, e);
+		}
+	}
+
+	private void discard(UploadSession session) throws IOException {
+		uploadSessionRepository.delete(session);
+		Files.deleteIfExists(spoolPath(session.getId()));
+		LOGGER.debug("Discarded upload session {}", session.getId());
+	}
+
+	// The session may have been completed or aborted while this thread waited
+	// for its lock
+	private UploadSession reload(String id) {
+		return uploadSessionRepository.findById(id).orElseThrow(() -> new UploadNotFoundException(id));
+	}
+
+	private SessionLock lock(String id) {
+		SessionLock lock;
+		synchronized (locks) {
+			lock = locks.computeIfAbsent(id, key -> new SessionLock());
+			lock.users++;
+		}
+		lock.lock();
+		return lock;
+	}
+
+	private void unlock(String id, SessionLock lock) {
+		lock.unlock();
+		synchronized (locks) {
+			if (--lock.users == 0) {
+				locks.remove(id);
+			}
+		}
+	}
+
+	private Path spoolPath(String id) {
+		return Paths.get(spoolDir, id + ".part");
+	}
+
+	private static class SessionLock extends ReentrantLock {
+		private static final long serialVersionUID = 1L;
+
+		// Threads holding or waiting for the lock, guarded by the lock map
+		private int users;
+	}
+}
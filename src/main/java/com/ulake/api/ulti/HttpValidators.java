@@ -0,0 +1,30 @@
+package com.ulake.api.ulti;
+
+import java.util.Date;
+
+import org.springframework.http.CacheControl;
+
+import com.ulake.api.models.Auditable;
+
+/**
+ * Validators for conditional GETs on metadata. The dataset id changes whenever
+ * the metadata is rewritten in core and the audit date whenever the row is
+ * saved, so together they identify one version of the response.
+ */
+public final class HttpValidators {
+	// Clients may keep metadata but must revalidate before using it
+	public static final CacheControl METADATA_CACHE_CONTROL = CacheControl.noCache().cachePrivate();
+
+	private HttpValidators() {
+	}
+
+	public static String metadataEtag(String datasetId, Auditable<?> entity) {
+		return "W/\"" + datasetId + "-" + lastModified(entity) + "\"";
+	}
+
+	// -1 when the row predates auditing
+	public static long lastModified(Auditable<?> entity) {
+		Date date = entity.getLastModifiedDate() != null ? entity.getLastModifiedDate() : entity.getCreatedDate();
+		return date != null ? date.getTime() : -1;
+	}
+}
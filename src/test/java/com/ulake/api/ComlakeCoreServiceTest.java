@@ -0,0 +1,218 @@
+package com.ulake.api;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.http.HttpClient;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpRange;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.client.HttpComponentsClientHttpRequestFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.RestTemplate;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.ulake.api.advice.CoreOverloadedException;
+import com.ulake.api.security.services.ComlakeCoreService;
+import com.ulake.api.security.services.CoreAdmissionService;
+import com.ulake.api.security.services.CoreContent;
+import com.ulake.api.security.services.CoreHedgingService;
+import com.ulake.api.security.services.CoreResilienceService;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * ComlakeCoreService against the in-process {@link FakeCoreServer}, no MySQL
+ * or IPFS needed.
+ */
+public class ComlakeCoreServiceTest {
+	private FakeCoreServer core;
+
+	private SimpleMeterRegistry registry;
+
+	private CoreHedgingService hedging;
+
+	private ThreadPoolTaskExecutor hedgeExecutor;
+
+	private ComlakeCoreService coreService;
+
+	@BeforeEach
+	public void setUp() throws IOException {
+		core = new FakeCoreServer();
+		registry = new SimpleMeterRegistry();
+
+		CoreAdmissionService admission = new CoreAdmissionService(registry);
+		ReflectionTestUtils.setField(admission, "maxInFlightBytes", 1L << 30);
+		ReflectionTestUtils.setField(admission, "maxConcurrent", 32);
+		ReflectionTestUtils.setField(admission, "acquireTimeoutMs", 1000L);
+		ReflectionTestUtils.setField(admission, "unknownSizeBytes", 1024L);
+
+		CoreResilienceService resilience = new CoreResilienceService();
+		ReflectionTestUtils.setField(resilience, "fileMaxConcurrent", 8);
+		ReflectionTestUtils.setField(resilience, "dirMaxConcurrent", 8);
+		ReflectionTestUtils.setField(resilience, "datasetMaxConcurrent", 8);
+		ReflectionTestUtils.setField(resilience, "findMaxConcurrent", 8);
+		ReflectionTestUtils.setField(resilience, "bulkheadMaxWaitMs", 100L);
+		ReflectionTestUtils.setField(resilience, "failureRateThreshold", 50f);
+		ReflectionTestUtils.setField(resilience, "slowCallMs", 5000L);
+		ReflectionTestUtils.setField(resilience, "slowCallRateThreshold", 80f);
+		ReflectionTestUtils.setField(resilience, "windowSize", 4);
+		ReflectionTestUtils.setField(resilience, "minimumCalls", 4);
+		ReflectionTestUtils.setField(resilience, "openSeconds", 30L);
+		ReflectionTestUtils.setField(resilience, "registry", registry);
+		resilience.init();
+
+		hedging = new CoreHedgingService(registry);
+		ReflectionTestUtils.setField(hedging, "percentile", 0.5);
+		ReflectionTestUtils.setField(hedging, "minDelayMs", 20L);
+		ReflectionTestUtils.setField(hedging, "minSamples", 5L);
+		ReflectionTestUtils.setField(hedging, "budgetPercent", 100L);
+		ReflectionTestUtils.setField(hedging, "maxBurst", 10L);
+
+		hedgeExecutor = new ThreadPoolTaskExecutor();
+		hedgeExecutor.setCorePoolSize(4);
+		hedgeExecutor.setQueueCapacity(0);
+		hedgeExecutor.initialize();
+
+		coreService = new ComlakeCoreService();
+		ReflectionTestUtils.setField(coreService, "coreBasePath", core.getBasePath());
+		ReflectionTestUtils.setField(coreService, "bufferSize", 8192);
+		ReflectionTestUtils.setField(coreService, "admission", admission);
+		ReflectionTestUtils.setField(coreService, "resilience", resilience);
+		ReflectionTestUtils.setField(coreService, "hedging", hedging);
+		ReflectionTestUtils.setField(coreService, "hedgeExecutor", hedgeExecutor);
+		ReflectionTestUtils.setField(coreService, "restTemplate",
+				new RestTemplate(new HttpComponentsClientHttpRequestFactory()));
+		ReflectionTestUtils.setField(coreService, "readTimeoutMs", 10000L);
+		ReflectionTestUtils.setField(coreService, "asyncClient", HttpClient.newHttpClient());
+		ReflectionTestUtils.setField(coreService, "datasetCacheMaxEntries", 1000L);
+		ReflectionTestUtils.setField(coreService, "datasetCacheMaxBytes", 1L << 20);
+		ReflectionTestUtils.setField(coreService, "listingCacheMaxEntries", 1000L);
+		ReflectionTestUtils.setField(coreService, "listingCacheMaxBytes", 1L << 20);
+		ReflectionTestUtils.setField(coreService, "topicCacheMaxEntries", 100L);
+		ReflectionTestUtils.setField(coreService, "topicCacheTtlSeconds", 60L);
+		ReflectionTestUtils.setField(coreService, "registry", registry);
+		coreService.init();
+	}
+
+	@AfterEach
+	public void tearDown() {
+		hedgeExecutor.shutdown();
+		core.close();
+	}
+
+	@Test
+	@DisplayName("Should store a file by content and read it back whole or in part")
+	public void shouldRoundTripFile() throws IOException {
+		byte[] data = "hello core".getBytes(StandardCharsets.UTF_8);
+		String cid = coreService.postFile(new ByteArrayInputStream(data), (long) data.length, "text/plain");
+		assertEquals(cid, coreService.postFile(new ByteArrayInputStream(data), null, null));
+
+		try (CoreContent content = coreService.openFile(cid)) {
+			assertArrayEquals(data, content.getBody().readAllBytes());
+		}
+		try (CoreContent content = coreService.openFile(cid, HttpRange.createByteRange(6, 9))) {
+			assertEquals(HttpStatus.PARTIAL_CONTENT, content.getStatus());
+			assertEquals("core", new String(content.getBody().readAllBytes(), StandardCharsets.UTF_8));
+		}
+	}
+
+	@Test
+	@DisplayName("Should give a new directory cid for every copy into it")
+	public void shouldCopyIntoDirectory() throws IOException {
+		byte[] data = "a".getBytes(StandardCharsets.UTF_8);
+		String fileCid = coreService.postFile(new ByteArrayInputStream(data), 1L, null);
+		String emptyDir = coreService.postFolder();
+		String dir = coreService.cpToDir(fileCid, emptyDir, "a.txt");
+		assertNotEquals(emptyDir, dir);
+
+		JsonNode listing = coreService.listContent(dir);
+		assertEquals(1, listing.size());
+		assertEquals("a.txt", listing.get(0).path("name").asText());
+		assertEquals(fileCid, listing.get(0).path("cid").asText());
+	}
+
+	@Test
+	@DisplayName("Should list a directory from core only once")
+	public void shouldCacheListing() throws IOException {
+		String dir = coreService.cpToDir("file", coreService.postFolder(), "a.txt");
+		coreService.warmListing(dir);
+		JsonNode listing = coreService.listContent(dir);
+		long seen = core.getRequestCount();
+		assertEquals(listing, coreService.listContent(dir));
+		assertEquals(seen, core.getRequestCount());
+	}
+
+	@Test
+	@DisplayName("Should find datasets by id, by several ids and by topics")
+	public void shouldFindDatasets() throws IOException {
+		String first = coreService.addDataset("cid1", "first", "test", List.of("maps", "rivers"), 1L, null, "en");
+		String second = coreService.addDataset("cid2", "second", "test", List.of("maps"), 2L, null, "vi");
+		String updated = coreService.updateDataset(second, "second v2", "test", List.of("rivers"), "vi");
+
+		assertEquals("first", ((Map<?, ?>) coreService.findByDatasetId(first)[0]).get("description"));
+		assertEquals(2, coreService.findByDatasetIds(List.of(first, updated)).length);
+		assertEquals(1, coreService.findByTopics(List.of("maps", "rivers")).length);
+		assertEquals(2, coreService.findByTopics(List.of("rivers")).length);
+	}
+
+	@Test
+	@DisplayName("Should fail fast once core keeps failing")
+	public void shouldOpenBreakerOnFailures() {
+		core.setErrorRate(1);
+		for (int i = 0; i < 4; i++) {
+			assertThrows(HttpServerErrorException.class, () -> coreService.postFolder());
+		}
+		long seen = core.getRequestCount();
+		assertThrows(CoreOverloadedException.class, () -> coreService.postFolder());
+		assertEquals(seen, core.getRequestCount());
+	}
+
+	@Test
+	@DisplayName("Should answer a stalled read from the hedge")
+	public void shouldHedgeStalledRead() throws IOException {
+		ReflectionTestUtils.setField(hedging, "enabled", true);
+		byte[] data = "hedge".getBytes(StandardCharsets.UTF_8);
+		String cid = coreService.postFile(new ByteArrayInputStream(data), (long) data.length, null);
+		for (int i = 0; i < 5; i++) {
+			coreService.openFile(cid).close();
+		}
+
+		core.stallNext(1, 5000);
+		long start = System.nanoTime();
+		try (CoreContent content = coreService.openFile(cid)) {
+			assertArrayEquals(data, content.getBody().readAllBytes());
+		}
+		assertTrue(System.nanoTime() - start < 4_000_000_000L);
+		assertEquals(1, registry.get("core.hedge.won").counter().count());
+	}
+
+	@Test
+	@DisplayName("Should drop cached topic searches sharing a topic with a new dataset")
+	public void shouldInvalidateTopicSearch() throws IOException {
+		String first = coreService.addDataset("cid1", "first", "test", List.of("maps"), 1L, null, "en");
+		// Let the background load of the new dataset finish
+		coreService.findByDatasetId(first);
+		assertEquals(1, coreService.findByTopics(List.of("maps")).length);
+		long seen = core.getRequestCount();
+		assertEquals(1, coreService.findByTopics(List.of("maps", "maps")).length);
+		assertEquals(seen, core.getRequestCount());
+
+		coreService.addDataset("cid2", "second", "test", List.of("maps", "rivers"), 2L, null, "en");
+		assertEquals(2, coreService.findByTopics(List.of("maps")).length);
+	}
+}
@@ -0,0 +1,74 @@
+package com.ulake.api;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.ulake.api.advice.CoreOverloadedException;
+import com.ulake.api.security.services.CoreAdmissionService;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+public class CoreAdmissionServiceTest {
+	private SimpleMeterRegistry registry;
+
+	private CoreAdmissionService admission;
+
+	@BeforeEach
+	public void setUp() {
+		registry = new SimpleMeterRegistry();
+		admission = new CoreAdmissionService(registry);
+		ReflectionTestUtils.setField(admission, "maxInFlightBytes", 100L);
+		ReflectionTestUtils.setField(admission, "maxConcurrent", 2);
+		ReflectionTestUtils.setField(admission, "acquireTimeoutMs", 0L);
+		ReflectionTestUtils.setField(admission, "unknownSizeBytes", 10L);
+		ReflectionTestUtils.setField(admission, "retryAfterSeconds", 7L);
+	}
+
+	@Test
+	@DisplayName("Should reject a transfer that does not fit the byte budget")
+	public void shouldRejectOverBudget() {
+		try (CoreAdmissionService.Permit permit = admission.acquire(80)) {
+			assertEquals(80, registry.get("core.admission.admitted.bytes").gauge().value());
+			CoreOverloadedException ex = assertThrows(CoreOverloadedException.class, () -> admission.acquire(30));
+			assertEquals(7, ex.getRetryAfterSeconds());
+		}
+		assertEquals(0, registry.get("core.admission.admitted.bytes").gauge().value());
+		admission.acquire(30).close();
+	}
+
+	@Test
+	@DisplayName("Should cap the number of concurrent transfers")
+	public void shouldCapConcurrency() {
+		try (CoreAdmissionService.Permit first = admission.acquire(-1);
+				CoreAdmissionService.Permit second = admission.acquire(-1)) {
+			assertEquals(20, registry.get("core.admission.admitted.bytes").gauge().value());
+			assertThrows(CoreOverloadedException.class, () -> admission.acquire(1));
+		}
+	}
+
+	@Test
+	@DisplayName("Should admit a transfer larger than the whole budget on its own")
+	public void shouldAdmitOversizedTransferAlone() {
+		try (CoreAdmissionService.Permit permit = admission.acquire(1000)) {
+			assertEquals(100, registry.get("core.admission.admitted.bytes").gauge().value());
+		}
+	}
+
+	@Test
+	@DisplayName("Should charge a transfer its real size once known")
+	public void shouldResizePermit() {
+		try (CoreAdmissionService.Permit permit = admission.acquire(-1)) {
+			permit.resize(60);
+			assertEquals(60, registry.get("core.admission.admitted.bytes").gauge().value());
+			assertThrows(CoreOverloadedException.class, () -> admission.acquire(50));
+			permit.resize(-1);
+			assertEquals(60, registry.get("core.admission.admitted.bytes").gauge().value());
+		}
+		assertEquals(0, registry.get("core.admission.admitted.bytes").gauge().value());
+	}
+}
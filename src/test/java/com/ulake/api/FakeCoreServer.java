@@ -0,0 +1,366 @@
+package com.ulake.api;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ArrayNode;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * In-process stand-in for the core HTTP API (/file, /dir, /cp, /dataset,
+ * /update and /find), for tests and for load testing the API without IPFS.
+ * Files and directories are content addressed: the cid is a hash of the
+ * content, so equal content gets equal cids as in core. Blobs are kept in
+ * memory, or on disk when a directory is given. Latency, stalls and server
+ * errors can be injected.
+ *
+ * Run standalone with {@code main [port] [blobDir]} and point app.coreBasePath
+ * at it.
+ */
+public class FakeCoreServer implements AutoCloseable {
+	private static final ObjectMapper MAPPER = new ObjectMapper();
+
+	private final HttpServer server;
+	private final ExecutorService executor = Executors.newCachedThreadPool();
+	// Null keeps blobs in memory
+	private final Path blobDir;
+	private final Map<String, byte[]> blobs = new ConcurrentHashMap<>();
+	// Directory cid -> entries (name -> cid)
+	private final Map<String, Map<String, String>> dirs = new ConcurrentHashMap<>();
+	private final Map<Long, ObjectNode> datasets = new ConcurrentHashMap<>();
+	private final AtomicLong nextDatasetId = new AtomicLong(1);
+	private final AtomicLong requests = new AtomicLong();
+
+	private volatile long latencyMs;
+	private volatile long latencyJitterMs;
+	private volatile double errorRate;
+	private final AtomicInteger stalls = new AtomicInteger();
+	private volatile long stallMs;
+
+	public FakeCoreServer() throws IOException {
+		this(0, null);
+	}
+
+	public FakeCoreServer(int port, Path blobDir) throws IOException {
+		this.blobDir = blobDir;
+		if (blobDir != null) {
+			Files.createDirectories(blobDir);
+		}
+		dirs.put(dirCid(new TreeMap<>()), new TreeMap<>());
+		server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+		server.createContext("/", this::handle);
+		server.setExecutor(executor);
+		server.start();
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8081;
+		Path blobDir = args.length > 1 ? Path.of(args[1]) : null;
+		FakeCoreServer core = new FakeCoreServer(port, blobDir);
+		System.out.println("Fake core listening on " + core.getBasePath());
+	}
+
+	// Ends with a slash, like app.coreBasePath
+	public String getBasePath() {
+		return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+	}
+
+	public long getRequestCount() {
+		return requests.get();
+	}
+
+	// Every request waits latencyMs plus up to jitterMs more
+	public void setLatency(long latencyMs, long jitterMs) {
+		this.latencyMs = latencyMs;
+		this.latencyJitterMs = jitterMs;
+	}
+
+	// Fraction of requests answered with 500
+	public void setErrorRate(double errorRate) {
+		this.errorRate = errorRate;
+	}
+
+	// The next count requests each stall for stallMs before answering
+	public void stallNext(int count, long stallMs) {
+		this.stallMs = stallMs;
+		stalls.set(count);
+	}
+
+	@Override
+	public void close() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			requests.incrementAndGet();
+			injectDelay();
+			if (errorRate > 0 && ThreadLocalRandom.current().nextDouble() < errorRate) {
+				send(exchange, 500, "text/plain", "injected failure".getBytes(StandardCharsets.UTF_8));
+				return;
+			}
+			// The API builds some paths as basePath + "/dir"
+			String path = exchange.getRequestURI().getPath().replaceAll("/+", "/");
+			String method = exchange.getRequestMethod();
+			if (method.equals("POST") && path.equals("/file")) {
+				postFile(exchange);
+			} else if (method.equals("GET") && path.startsWith("/file/")) {
+				getFile(exchange, path.substring("/file/".length()));
+			} else if (method.equals("POST") && path.equals("/dir")) {
+				json(exchange, cidResponse(dirCid(new TreeMap<>())));
+			} else if (method.equals("GET") && path.startsWith("/dir/")) {
+				listDir(exchange, path.substring("/dir/".length()));
+			} else if (method.equals("POST") && path.equals("/cp")) {
+				cp(exchange);
+			} else if (method.equals("POST") && path.equals("/dataset")) {
+				addDataset(exchange, readJson(exchange), null);
+			} else if (method.equals("POST") && path.equals("/update")) {
+				update(exchange);
+			} else if (method.equals("POST") && path.equals("/find")) {
+				find(exchange);
+			} else {
+				send(exchange, 404, "text/plain", new byte[0]);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private void injectDelay() throws InterruptedException {
+		long delay = latencyMs;
+		if (latencyJitterMs > 0) {
+			delay += ThreadLocalRandom.current().nextLong(latencyJitterMs + 1);
+		}
+		if (stalls.getAndUpdate(left -> Math.max(0, left - 1)) > 0) {
+			delay += stallMs;
+		}
+		if (delay > 0) {
+			Thread.sleep(delay);
+		}
+	}
+
+	private void postFile(HttpExchange exchange) throws IOException {
+		byte[] data;
+		try (InputStream in = exchange.getRequestBody()) {
+			data = in.readAllBytes();
+		}
+		String cid = hash(data);
+		if (blobDir != null) {
+			Path blob = blobDir.resolve(cid);
+			if (!Files.exists(blob)) {
+				Files.write(blob, data);
+			}
+		} else {
+			blobs.putIfAbsent(cid, data);
+		}
+		json(exchange, cidResponse(cid));
+	}
+
+	// Honours a single bytes=start-end range, as core does for partial reads
+	private void getFile(HttpExchange exchange, String cid) throws IOException {
+		byte[] data = readBlob(cid);
+		if (data == null) {
+			send(exchange, 404, "text/plain", new byte[0]);
+			return;
+		}
+		String range = exchange.getRequestHeaders().getFirst("Range");
+		if (range != null && range.startsWith("bytes=") && !range.contains(",")) {
+			String[] bounds = range.substring("bytes=".length()).split("-", -1);
+			long start;
+			long end;
+			if (bounds[0].isEmpty()) {
+				start = Math.max(0, data.length - Long.parseLong(bounds[1]));
+				end = data.length - 1;
+			} else {
+				start = Long.parseLong(bounds[0]);
+				end = bounds[1].isEmpty() ? data.length - 1 : Math.min(Long.parseLong(bounds[1]), data.length - 1);
+			}
+			if (start >= data.length || start > end) {
+				exchange.getResponseHeaders().set("Content-Range", "bytes */" + data.length);
+				send(exchange, 416, "text/plain", new byte[0]);
+				return;
+			}
+			exchange.getResponseHeaders().set("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+			byte[] part = new byte[(int) (end - start + 1)];
+			System.arraycopy(data, (int) start, part, 0, part.length);
+			send(exchange, 206, "application/octet-stream", part);
+			return;
+		}
+		send(exchange, 200, "application/octet-stream", data);
+	}
+
+	private void listDir(HttpExchange exchange, String cid) throws IOException {
+		Map<String, String> entries = dirs.get(cid);
+		if (entries == null) {
+			send(exchange, 404, "text/plain", new byte[0]);
+			return;
+		}
+		ArrayNode listing = MAPPER.createArrayNode();
+		entries.forEach((name, entryCid) -> listing.addObject().put("name", name).put("cid", entryCid)
+				.put("type", dirs.containsKey(entryCid) ? "dir" : "file"));
+		json(exchange, listing);
+	}
+
+	// Copy src into the dest directory under path, giving a new directory cid
+	private void cp(HttpExchange exchange) throws IOException {
+		JsonNode body = readJson(exchange);
+		Map<String, String> entries = dirs.get(body.path("dest").asText());
+		if (entries == null) {
+			send(exchange, 404, "text/plain", new byte[0]);
+			return;
+		}
+		Map<String, String> copy = new TreeMap<>(entries);
+		copy.put(body.path("path").asText(), body.path("src").asText());
+		String cid = dirCid(copy);
+		dirs.putIfAbsent(cid, copy);
+		json(exchange, cidResponse(cid));
+	}
+
+	private void addDataset(HttpExchange exchange, JsonNode body, ObjectNode parent) throws IOException {
+		long id = nextDatasetId.getAndIncrement();
+		ObjectNode dataset = parent != null ? parent.deepCopy() : MAPPER.createObjectNode();
+		body.fields().forEachRemaining(field -> {
+			if (!field.getKey().equals("parent")) {
+				dataset.set(field.getKey(), field.getValue());
+			}
+		});
+		dataset.put("id", id);
+		datasets.put(id, dataset);
+		json(exchange, MAPPER.createObjectNode().put("id", id));
+	}
+
+	// A new version of a dataset; the parent keeps its id and content
+	private void update(HttpExchange exchange) throws IOException {
+		JsonNode body = readJson(exchange);
+		ObjectNode parent = datasets.get(body.path("parent").asLong());
+		if (parent == null) {
+			send(exchange, 404, "text/plain", new byte[0]);
+			return;
+		}
+		addDataset(exchange, body, parent);
+	}
+
+	private void find(HttpExchange exchange) throws IOException {
+		JsonNode query = readJson(exchange);
+		ArrayNode found = MAPPER.createArrayNode();
+		new TreeMap<>(datasets).values().forEach(dataset -> {
+			if (matches(query, dataset)) {
+				found.add(dataset);
+			}
+		});
+		json(exchange, found);
+	}
+
+	// The subset of the query language the API sends:
+	// ["==", [".", ["$"], field], value], ["||", q...] and
+	// ["&&", [".", ["$"], "topics"], [topic...]] (all topics present)
+	private static boolean matches(JsonNode query, JsonNode dataset) {
+		switch (query.path(0).asText()) {
+		case "==":
+			return same(field(query.path(1), dataset), query.path(2));
+		case "||":
+			for (int i = 1; i < query.size(); i++) {
+				if (matches(query.path(i), dataset)) {
+					return true;
+				}
+			}
+			return false;
+		case "&&":
+			JsonNode values = field(query.path(1), dataset);
+			List<JsonNode> have = new ArrayList<>();
+			values.forEach(have::add);
+			for (Iterator<JsonNode> wanted = query.path(2).elements(); wanted.hasNext();) {
+				if (!have.contains(wanted.next())) {
+					return false;
+				}
+			}
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	// Ids go out as longs and come back parsed as ints
+	private static boolean same(JsonNode a, JsonNode b) {
+		if (a.isNumber() && b.isNumber()) {
+			return a.decimalValue().compareTo(b.decimalValue()) == 0;
+		}
+		return a.equals(b);
+	}
+
+	private static JsonNode field(JsonNode path, JsonNode dataset) {
+		return dataset.path(path.path(2).asText());
+	}
+
+	private byte[] readBlob(String cid) throws IOException {
+		if (blobDir == null) {
+			return blobs.get(cid);
+		}
+		Path blob = blobDir.resolve(cid);
+		return Files.exists(blob) ? Files.readAllBytes(blob) : null;
+	}
+
+	private static String dirCid(Map<String, String> entries) {
+		return "dir-" + hash(entries.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	private static String hash(byte[] data) {
+		try {
+			StringBuilder hex = new StringBuilder();
+			for (byte b : MessageDigest.getInstance("SHA-256").digest(data)) {
+				hex.append(String.format("%02x", b));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static JsonNode cidResponse(String cid) {
+		return MAPPER.createObjectNode().put("cid", cid);
+	}
+
+	private static JsonNode readJson(HttpExchange exchange) throws IOException {
+		try (InputStream in = exchange.getRequestBody()) {
+			return MAPPER.readTree(in);
+		}
+	}
+
+	private static void json(HttpExchange exchange, JsonNode body) throws IOException {
+		send(exchange, 200, "application/json", MAPPER.writeValueAsBytes(body));
+	}
+
+	private static void send(HttpExchange exchange, int status, String contentType, byte[] body)
+			throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", contentType);
+		exchange.sendResponseHeaders(status, body.length == 0 ? -1 : body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+}